@@ -0,0 +1,213 @@
+package org.cbc.application;
+
+import java.text.DateFormatSymbols;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Renders the time parameters used by templates, see Parameters.substitute. The formatted fields for the
+ * last second rendered are cached and only recalculated when the second changes. The date fields are
+ * only recalculated when the day changes.
+ * <P>
+ * The cached fields are immutable and shared between threads, so the class is thread safe.
+ * <P>
+ * As well as the strftime format characters, the following are supported
+ * <PRE>
+ *   T Milliseconds to 3 digits.
+ *   i UTC time in ISO-8601 format to millisecond precision, e.g. 2002-01-27T13:05:09.015Z
+ *   E Milliseconds since the epoch.
+ * </PRE>
+ */
+public class Clock {
+    private static transient final    DateFormatSymbols dateSymbols   = new DateFormatSymbols();
+    private static transient final    String[]          shortWeekdays = dateSymbols.getShortWeekdays();
+    private static transient final    String[]          shortMonths   = dateSymbols.getShortMonths();
+    private static transient volatile Fields            last          = null;
+
+    /*
+     * The formatted fields for a second. The local date fields apply from dayStart up to dayEnd.
+     */
+    private static class Fields {
+        final ZoneId zone;
+        final long   second;
+        final long   dayStart;
+        final long   dayEnd;
+        final String weekday;
+        final String month;
+        final String day;
+        final String monthNumber;
+        final String year;
+        final String shortYear;
+        final String hour;
+        final String minute;
+        final String seconds;
+        final String utc;
+
+        Fields(long second, Fields previous) {
+            ZonedDateTime local;
+
+            this.second = second;
+            zone        = ZoneId.systemDefault();
+            local       = Instant.ofEpochSecond(second).atZone(zone);
+
+            if (previous != null && second >= previous.dayStart && second < previous.dayEnd && zone.equals(previous.zone)) {
+                dayStart    = previous.dayStart;
+                dayEnd      = previous.dayEnd;
+                weekday     = previous.weekday;
+                month       = previous.month;
+                day         = previous.day;
+                monthNumber = previous.monthNumber;
+                year        = previous.year;
+                shortYear   = previous.shortYear;
+            } else {
+                dayStart    = local.toLocalDate().atStartOfDay(zone).toEpochSecond();
+                dayEnd      = local.toLocalDate().plusDays(1).atStartOfDay(zone).toEpochSecond();
+                weekday     = shortWeekdays[local.getDayOfWeek().getValue() % 7 + 1];
+                month       = shortMonths[local.getMonthValue() - 1];
+                day         = digits(local.getDayOfMonth(), 2);
+                monthNumber = digits(local.getMonthValue(), 2);
+                year        = digits(local.getYear(), 2);
+                shortYear   = digits(local.getYear() % 100, 2);
+            }
+            hour    = digits(local.getHour(), 2);
+            minute  = digits(local.getMinute(), 2);
+            seconds = digits(local.getSecond(), 2);
+            utc     = utc(second);
+        }
+    }
+    private static String digits(int value, int length) {
+        StringBuilder number = new StringBuilder(length);
+
+        digits(number, value, length);
+        return number.toString();
+    }
+    private static void digits(StringBuilder out, long value, int length) {
+        for (long divisor = 10; --length > 0; divisor *= 10) {
+            if (value < divisor) out.append('0');
+        }
+        out.append(value);
+    }
+    /*
+     * Returns the ISO-8601 UTC time for second up to and including the decimal point.
+     */
+    private static String utc(long second) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+        StringBuilder out  = new StringBuilder(24);
+
+        digits(out, time.getYear(), 4);
+        out.append('-');
+        digits(out, time.getMonthValue(), 2);
+        out.append('-');
+        digits(out, time.getDayOfMonth(), 2);
+        out.append('T');
+        digits(out, time.getHour(), 2);
+        out.append(':');
+        digits(out, time.getMinute(), 2);
+        out.append(':');
+        digits(out, time.getSecond(), 2);
+        return out.append('.').toString();
+    }
+    private static Fields getFields(long second) {
+        Fields fields = last;
+
+        if (fields == null || fields.second != second) {
+            fields = new Fields(second, fields);
+            last   = fields;
+        }
+        return fields;
+    }
+    /**
+     * Returns the earliest time after time, in milliseconds since the epoch, at which the value of the time
+     * parameter with format character format can change. Long.MAX_VALUE is returned if format is not a time
+     * parameter.
+     */
+    public static long nextChange(char format, long time) {
+        ZonedDateTime local;
+
+        switch (format) {
+            case 'T':
+            case 'E':
+            case 'i':
+                return time + 1;
+            case 'S':
+                return (Math.floorDiv(time, 1000L) + 1) * 1000L;
+            case 'M':
+                local = Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault());
+                return local.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1).toInstant().toEpochMilli();
+            case 'H':
+                local = Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault());
+                return local.truncatedTo(ChronoUnit.HOURS).plusHours(1).toInstant().toEpochMilli();
+            case 'a':
+            case 'b':
+            case 'd':
+            case 'm':
+            case 'y':
+            case 'Y':
+                return getFields(Math.floorDiv(time, 1000L)).dayEnd * 1000L;
+        }
+        return Long.MAX_VALUE;
+    }
+    /**
+     * Appends the value of the time parameter with format character format for time, which is in
+     * milliseconds since the epoch.
+     */
+    public static void append(StringBuilder out, char format, long time) {
+        long   second = Math.floorDiv(time, 1000L);
+        int    millis = (int) Math.floorMod(time, 1000L);
+        Fields fields;
+
+        switch (format) {
+            case 'T':
+                digits(out, millis, 3);
+                return;
+            case 'E':
+                out.append(time);
+                return;
+            case '%':
+                out.append('%');
+                return;
+        }
+        fields = getFields(second);
+
+        switch (format) {
+            case 'a':
+                out.append(fields.weekday);
+                break;
+            case 'b':
+                out.append(fields.month);
+                break;
+            case 'd':
+                out.append(fields.day);
+                break;
+            case 'm':
+                out.append(fields.monthNumber);
+                break;
+            case 'H':
+                out.append(fields.hour);
+                break;
+            case 'M':
+                out.append(fields.minute);
+                break;
+            case 'S':
+                out.append(fields.seconds);
+                break;
+            case 'y':
+                out.append(fields.shortYear);
+                break;
+            case 'Y':
+                out.append(fields.year);
+                break;
+            case 'i':
+                out.append(fields.utc);
+                digits(out, millis, 3);
+                out.append('Z');
+                break;
+            default:
+                out.append('%').append(format);
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package org.cbc.application;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The class maintains a set of parameters and provides a method to substitute
@@ -33,11 +35,11 @@ public class Parameters implements Serializable {
      * Sets parameter Name to Value. The current value is overwritten.
      */
     public void setValue(String Name, String Value) {
-        params.put(key(Name), Value);
+        modify().put(key(Name), Value);
     }
 
     public void setValue(String Name, int Value) {
-        params.put(key(Name), Integer.toString(Value));
+        modify().put(key(Name), Integer.toString(Value));
     }
 
     /**
@@ -60,16 +62,40 @@ public class Parameters implements Serializable {
      * Clears all the parameters.
      */
     public void clear() {
-        params.clear();
+        modify().clear();
     }
     /*
      * Removes parameter Name. No action is taken if the parameter does not exist.
      */
     public void clear(String Name) {
-        params.remove(key(Name));
+        if (params.containsKey(key(Name))) modify().remove(key(Name));
     }
     public Set<String> getNames() {
-        return params.keySet();
+        return Collections.unmodifiableSet(params.keySet());
+    }
+    /**
+     * Returns a copy of the parameters. The copy and the original share their
+     * values until either is changed, so taking a copy does not copy the
+     * values. A copy that is not changed can be read by other threads while
+     * the original continues to be changed.
+     */
+    public Parameters snapshot() {
+        Parameters copy = new Parameters(ignoreNameCase);
+
+        copy.params = params;
+        copy.shared = true;
+        shared      = true;
+        return copy;
+    }
+    /*
+     * Returns params for update, first taking a private copy if the values are shared with a snapshot.
+     */
+    private HashMap<String, String> modify() {
+        if (shared) {
+            params = new HashMap<String, String>(params);
+            shared = false;
+        }
+        return params;
     }
     /**
      * Substitutes the parameters embedded in template with their values.
@@ -103,134 +129,31 @@ public class Parameters implements Serializable {
      * Time parameters within substituted values are expanded.
      */
     public String substitute(String template, Parameters local) {
-        Token token   = new Token(template);
-        String output = "";
-
-        while (token.moreCharacters()) {
-            boolean add = true;
-            char chr = token.nextCharacter();
-
-            if (chr != '|') {
-                if (chr == '!') {
-                    output += expandParam(token, local);
-                    add = false;
-                }
-            } else {
-                chr = token.nextCharacter();
-            }
-
-            if (add && chr != '\0') {
-                output += chr;
-            }
-        }
-        return Utilities.formatTime(output);
+        return Template.compile(template).render(this, local);
     }
 
     public String substitute(String template) {
         return substitute(template, null);
     }
-    private void formatError(String reason, Token format) {
-        //***Need to do something about this
-        //throw ParameterException(
-        //Reason + " at character " + (Format.getIndex() + 1) + " in template " + Format.value());
-    }
-
-    private String executeFormat(Token t, boolean string) {
-        String value = "";
-        char control = (string) ? 's' : t.nextCharacter();
-        char ch = 0;
-
-        if (control != 's' && control != 'c') {
-            formatError("Invalid format control", t);
-        }
-
-        while (t.moreCharacters() && (ch = t.nextCharacter()) != '!') {
-            boolean plus = (ch == '+');
-
-            if (ch == '|') {
-                if (!t.moreCharacters()) {
-                    formatError("Escaped character missing", t);
-                }
-                ch = t.nextCharacter();
-            }
+    /*
+     * The upper case names are cached, as the same names, e.g. those in a report prefix, are looked up for
+     * every report and toUpperCase creates a new string for a name that is not upper case.
+     */
+    private String key(String name) {
+        if (!ignoreNameCase) return name;
 
-            if (control == 'c') {
-                value += ch;
-                return value;
-            }
-            if (plus) {
-                return value;
-            }
-            value += ch;
-        }
-        formatError("Unterminated format", t);
-        return "";
-    }
+        String key = upperNames.get(name);
 
-    private String expandParam(Token t, Parameters local) {
-        String  name         = "";
-        String  prefix       = "";
-        String  postfix      = "";
-        String  def          = "";
-        String  value        = "";
-        boolean nameComplete = false;
-        boolean first        = true;
-        char    ch           = 0;
+        if (key == null) {
+            key = name.toUpperCase();
 
-        while (t.moreCharacters() && (ch = t.nextCharacter()) != '!') {
-            if (ch == '|') {
-                ch = t.nextCharacter();
-            }
-            switch (ch) {
-                case '\0':
-                    formatError("Escaped character missing", t);
-                    break;
-                case ':':
-                    if (!first) {
-                        formatError("Default not at start", t);
-                    }
-                    def = executeFormat(t, true);
-                    break;
-                case '+':
-                    nameComplete = (name.length() != 0);
-                    if (nameComplete) {
-                        postfix += executeFormat(t, false);
-                    } else {
-                        prefix += executeFormat(t, false);
-                    }
-                    break;
-                case ' ':
-                    if (name.length() != 0) {
-                        name += ch;
-                    }
-                    break;
-                default:
-                    if (nameComplete) {
-                        formatError("Unexpected character", t);
-                    }
-                    name += ch;
-            }
-            if (first && ch != ' ') {
-                first = false;
-            }
-        }
-        if (ch != '!') {
-            formatError("Parameter specifier not terminated by !", t);
-        }
-        if (local != null && local.exists(name)) {
-            value = local.getValue(name);
-        } else {
-            value = getValue(name);
+            if (upperNames.size() < maxUpperNames) upperNames.put(name, key);
         }
-        return (value.length() == 0) ? def : prefix + value + postfix;
-    }
-    
-    private String expandParam(Token t) {
-        return expandParam(t, null);
-    }
-    private String key(String name) {
-        return (ignoreNameCase) ? name.toUpperCase() : name;
+        return key;
     }
-    private transient HashMap<String, String> params         = new HashMap<String, String>();
-    private transient boolean                 ignoreNameCase = true;
+    private static final int                               maxUpperNames  = 1024;
+    private static final ConcurrentHashMap<String, String> upperNames     = new ConcurrentHashMap<String, String>();
+    private transient    HashMap<String, String>           params         = new HashMap<String, String>();
+    private transient    boolean                           ignoreNameCase = true;
+    private transient    boolean                           shared         = false;
 }
\ No newline at end of file
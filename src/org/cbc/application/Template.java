@@ -0,0 +1,252 @@
+package org.cbc.application;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A parameter template, as described by Parameters.substitute, compiled into a list of segments. Each
+ * segment is either literal text, a time parameter or a named parameter. The template is parsed once
+ * on construction and rendered in a single pass into a caller supplied buffer. The time parameters are
+ * rendered by Clock for a single time taken at the start of the render.
+ *
+ * Time parameters in named parameter values are expanded, as they are by Parameters.substitute.
+ */
+public class Template implements Serializable {
+    private static abstract class Segment implements Serializable {
+        abstract void render(StringBuilder out, Parameters params, Parameters local, long time);
+    }
+    private static class Literal extends Segment {
+        private final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+        void render(StringBuilder out, Parameters params, Parameters local, long time) {
+            out.append(text);
+        }
+    }
+    private static class Time extends Segment {
+        private final char format;
+
+        Time(char format) {
+            this.format = format;
+        }
+        void render(StringBuilder out, Parameters params, Parameters local, long time) {
+            Utilities.appendTime(out, format, time);
+        }
+    }
+    private static class Param extends Segment {
+        private final String  name;
+        private final String  prefix;
+        private final String  postfix;
+        private final String  def;
+        private final boolean timed;
+
+        Param(String name, String prefix, String postfix, String def) {
+            this.name    = name;
+            this.prefix  = prefix;
+            this.postfix = postfix;
+            this.def     = def;
+            timed        = (prefix + postfix + def).indexOf('%') != -1;
+        }
+        void render(StringBuilder out, Parameters params, Parameters local, long time) {
+            String value = (local != null && local.exists(name)) ? local.getValue(name) : params.getValue(name);
+
+            if (timed || value.indexOf('%') != -1) {
+                if (value.length() == 0) {
+                    Utilities.formatTime(out, def, time);
+                } else {
+                    Utilities.formatTime(out, prefix, time);
+                    Utilities.formatTime(out, value, time);
+                    Utilities.formatTime(out, postfix, time);
+                }
+            } else if (value.length() == 0) {
+                out.append(def);
+            } else {
+                out.append(prefix).append(value).append(postfix);
+            }
+        }
+    }
+    private final String    template;
+    private final Segment[] segments;
+    private final String    timeFormats;
+
+    private Template(String template) {
+        ArrayList<Segment> list  = new ArrayList<Segment>();
+        Token              token = new Token(template);
+        StringBuilder      text  = new StringBuilder();
+
+        while (token.moreCharacters()) {
+            boolean add = true;
+            char    chr = token.nextCharacter();
+
+            if (chr != '|') {
+                if (chr == '!') {
+                    addLiteral(list, text);
+                    list.add(compileParam(token));
+                    add = false;
+                }
+            } else {
+                chr = token.nextCharacter();
+            }
+            if (add && chr != '\0') {
+                text.append(chr);
+            }
+        }
+        addLiteral(list, text);
+        this.template = template;
+        segments      = list.toArray(new Segment[list.size()]);
+        timeFormats   = getTimeFormats(segments);
+    }
+    /*
+     * Returns the format characters of the time parameters in segments, including those in the prefix,
+     * postfix and default of the named parameters.
+     */
+    private static String getTimeFormats(Segment[] segments) {
+        StringBuilder formats = new StringBuilder();
+
+        for (Segment segment : segments) {
+            if (segment instanceof Time) {
+                formats.append(((Time) segment).format);
+            } else if (segment instanceof Param) {
+                Param  param = (Param) segment;
+                String text  = param.prefix + param.postfix + param.def;
+
+                for (int i = text.indexOf('%'); i != -1 && i < text.length() - 1; i = text.indexOf('%', i + 2)) {
+                    formats.append(text.charAt(i + 1));
+                }
+            }
+        }
+        return formats.toString();
+    }
+    /**
+     * Returns template compiled.
+     */
+    public static Template compile(String template) {
+        return new Template(template == null ? "" : template);
+    }
+    /*
+     * Adds text to list splitting out the time parameters and clears text.
+     */
+    private static void addLiteral(ArrayList<Segment> list, StringBuilder text) {
+        int start = 0;
+
+        for (int i = 0; i < text.length() - 1; i++) {
+            if (text.charAt(i) == '%') {
+                if (i > start) list.add(new Literal(text.substring(start, i)));
+
+                list.add(new Time(text.charAt(++i)));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) list.add(new Literal(text.substring(start)));
+
+        text.setLength(0);
+    }
+    private static String executeFormat(Token t, boolean string) {
+        StringBuilder value   = new StringBuilder();
+        char          control = (string) ? 's' : t.nextCharacter();
+        char          ch;
+
+        while (t.moreCharacters() && (ch = t.nextCharacter()) != '!') {
+            boolean plus = (ch == '+');
+
+            if (ch == '|') {
+                ch = t.nextCharacter();
+            }
+            if (control == 'c') {
+                value.append(ch);
+                return value.toString();
+            }
+            if (plus) {
+                return value.toString();
+            }
+            value.append(ch);
+        }
+        return "";
+    }
+    /*
+     * Parses the named parameter following the opening ! in t. The parse errors are ignored as they are
+     * by Parameters.substitute.
+     */
+    private static Param compileParam(Token t) {
+        String  name         = "";
+        String  prefix       = "";
+        String  postfix      = "";
+        String  def          = "";
+        boolean nameComplete = false;
+        char    ch;
+
+        while (t.moreCharacters() && (ch = t.nextCharacter()) != '!') {
+            if (ch == '|') {
+                ch = t.nextCharacter();
+            }
+            switch (ch) {
+                case '\0':
+                    break;
+                case ':':
+                    def = executeFormat(t, true);
+                    break;
+                case '+':
+                    nameComplete = (name.length() != 0);
+                    if (nameComplete) {
+                        postfix += executeFormat(t, false);
+                    } else {
+                        prefix += executeFormat(t, false);
+                    }
+                    break;
+                case ' ':
+                    if (name.length() != 0) {
+                        name += ch;
+                    }
+                    break;
+                default:
+                    name += ch;
+            }
+        }
+        return new Param(name, prefix, postfix, def);
+    }
+    /**
+     * Appends the template to out substituting the parameters. The parameters in local take precedence
+     * over those in params. Local can be null.
+     */
+    public void render(StringBuilder out, Parameters params, Parameters local) {
+        render(out, params, local, System.currentTimeMillis());
+    }
+    /**
+     * As above except the time parameters are rendered for time, which is in milliseconds since the
+     * epoch.
+     */
+    public void render(StringBuilder out, Parameters params, Parameters local, long time) {
+        for (Segment segment : segments) {
+            segment.render(out, params, local, time);
+        }
+    }
+    public String render(Parameters params, Parameters local) {
+        StringBuilder out = new StringBuilder();
+
+        render(out, params, local);
+        return out.toString();
+    }
+    /**
+     * Returns the earliest time after time, in milliseconds since the epoch, at which the time parameters
+     * can cause the rendered template to change, or Long.MAX_VALUE if the template has no time parameters.
+     * <P>
+     * Time parameters in the values of named parameters are not allowed for, as the values are not known
+     * until the template is rendered.
+     */
+    public long nextChange(long time) {
+        long next = Long.MAX_VALUE;
+
+        for (int i = 0; i < timeFormats.length(); i++) {
+            next = Math.min(next, Clock.nextChange(timeFormats.charAt(i), time));
+        }
+        return next;
+    }
+    /**
+     * @return the template text from which this was compiled
+     */
+    public String getTemplate() {
+        return template;
+    }
+}
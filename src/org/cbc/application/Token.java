@@ -151,23 +151,26 @@ public class Token implements Serializable {
      * method comment.
      */
     public static boolean isMatch(String key, String value) {
-        Token   k     = new Token(key);
-        Token   v     = new Token(value);
+        int     k     = 0;
+        int     v     = 0;
         boolean step  = true;
         boolean equal = true;
         char    kCh   = 0;
         char    vCh;
-
-        while (equal && v.moreCharacters() && (k.moreCharacters() || !step)) {
+        /*
+         * K and v are the indexes of the next key and value characters. Indexes are used rather than Tokens,
+         * so that a match does not create any objects.
+         */
+        while (equal && v < value.length() && (k < key.length() || !step)) {
             if (step) {
                 step = kCh != '*';
-                kCh = k.nextCharacter();
+                kCh = k < key.length() ? key.charAt(k++) : 0;
             }
 
             if (kCh == '*') {
                 step = true;
             } else {
-                vCh = v.nextCharacter();
+                vCh = value.charAt(v++);
                 if (kCh == vCh) {
                     step = true;
                 } else if (step) {
@@ -196,7 +199,7 @@ public class Token implements Serializable {
 
         //If the remainder of the key is * it is a match.
 
-        if (k.moreCharacters() && k.remainder().equals("*")) {
+        if (k == key.length() - 1 && key.charAt(k) == '*') {
             return true;
         }
 
@@ -206,7 +209,7 @@ public class Token implements Serializable {
         //and in this case there is not a match even though the remainder of the key
         //and value is empty.
 
-        if (!v.moreCharacters() && step && !k.moreCharacters()) {
+        if (v == value.length() && step && k == key.length()) {
             return true;
         }
         return false;
@@ -10,67 +10,37 @@ package org.cbc.application;
  * @version <b>v1.1, 18/Nov/01, C.B. Close:</b> Match.
  */
 import java.io.Serializable;
-import java.text.DateFormatSymbols;
-import java.util.Calendar;
 
 public class Utilities implements Serializable {
-    private static transient final DateFormatSymbols dateSymbols   = new DateFormatSymbols();
-    private static transient final String[]          shortWeekdays = dateSymbols.getShortWeekdays();
-    private static transient final String[]          shortMonths   = dateSymbols.getShortMonths();
-
-    private static String digits(int value, int length) {
-        String number = "";
-
-        number = number + value;
-        while (number.length() < length) {
-            number = "0" + number;
-        }
-        return number;
+    /**
+     * Appends the value of the time parameter with format character format for time, which is in
+     * milliseconds since the epoch. See Clock for the format characters.
+     */
+    public static void appendTime(StringBuilder out, char format, long time) {
+        Clock.append(out, format, time);
     }
+    /**
+     * Appends format to out replacing the time parameters by their values for time, which is in
+     * milliseconds since the epoch.
+     */
+    public static void formatTime(StringBuilder out, String format, long time) {
+        int length = format.length();
 
-    private static String timeParam(char format) {
-        Calendar calendar = Calendar.getInstance();
+        for (int i = 0; i < length; i++) {
+            char chr = format.charAt(i);
 
-        switch (format) {
-            case 'a':
-                return shortWeekdays[calendar.get(Calendar.DAY_OF_WEEK)];
-            case 'b':
-                return shortMonths[calendar.get(Calendar.MONTH)];
-            case 'd':
-                return digits(calendar.get(Calendar.DAY_OF_MONTH), 2);
-            case 'm':
-                return digits(calendar.get(Calendar.MONTH) + 1, 2);
-            case 'H':
-                return digits(calendar.get(Calendar.HOUR_OF_DAY), 2);
-            case 'M':
-                return digits(calendar.get(Calendar.MINUTE), 2);
-            case 'T':
-                return digits(calendar.get(Calendar.MILLISECOND), 3);
-            case 'S':
-                return digits(calendar.get(Calendar.SECOND), 2);
-            case 'y':
-                return digits(calendar.get(Calendar.YEAR) % 100, 2);
-            case 'Y':
-                return digits(calendar.get(Calendar.YEAR), 2);
-            case '%':
-                return "%";
+            if (chr == '%') {
+                Clock.append(out, (i + 1 < length) ? format.charAt(++i) : '\0', time);
+            } else {
+                out.append(chr);
+            }
         }
-        return "%" + format;
     }
 
     public static String formatTime(String format) {
-        Token  token  = new Token(format);
-        String output = "";
+        StringBuilder output = new StringBuilder();
 
-        while (token.moreCharacters()) {
-            char chr = token.nextCharacter();
-
-            if (chr == '%') {
-                output += timeParam(token.nextCharacter());
-            } else {
-                output += chr;
-            }
-        }
-        return output;
+        formatTime(output, format, System.currentTimeMillis());
+        return output.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,250 @@
+package org.cbc.application.reporting;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the reports for a stream to a background writer thread. The reports are held in a bounded
+ * ring buffer that any number of threads can add to and that is drained by a single writer thread.
+ * <P>
+ * The caller only captures the report and adds it to the buffer. Opening the stream file, writing
+ * the report and flushing are all done by the writer thread.
+ */
+class AsyncWriter implements Runnable {
+    /*
+     * The action taken when a report is output and the buffer is full.
+     *
+     * BLOCK  The caller waits until the writer frees a buffer entry.
+     * DROP   The report is discarded.
+     * SAMPLE Once the buffer is more than half full only 1 in sampleRate reports are queued, the others
+     *        are discarded. Reports are discarded if the buffer is full.
+     */
+    enum Overflow {
+        BLOCK, DROP, SAMPLE
+    }
+    private static final int  sampleRate = 16;
+    private static final long idleWait   = 100 * 1000000L;
+    private static final long closeWait  = 1000 * 1000000L;
+
+    private class Slot {
+        volatile long sequence;
+        String        fileName;
+        long          time;
+        String        id;
+        String        threadIndex;
+        String        module;
+        String        ref;
+        StringBuilder message = new StringBuilder();
+        Exception     exception;
+        boolean       stackTrace;
+        boolean       retry;
+    }
+    private final    Process.Stream   stream;
+    private final    Overflow         overflow;
+    private final    Slot[]           slots;
+    private final    int              mask;
+    private final    AtomicLong       tail    = new AtomicLong(0);
+    private final    AtomicLong       dropped = new AtomicLong(0);
+    private final    AtomicLong       sampled = new AtomicLong(0);
+    private volatile long             head    = 0;
+    private volatile boolean          waiting = false;
+    private volatile boolean          closed  = false;
+    private volatile boolean          failed  = false;
+    private final    String           name;
+    private final    java.lang.Thread writer;
+    /*
+     * Size is rounded up to the next power of 2.
+     */
+    AsyncWriter(Process.Stream stream, String name, int size, Overflow overflow) {
+        int capacity = 1;
+
+        while (capacity < size && capacity < (1 << 30)) capacity <<= 1;
+
+        this.stream   = stream;
+        this.overflow = overflow;
+        this.name     = name;
+        slots         = new Slot[capacity];
+        mask          = capacity - 1;
+
+        for (int i = 0; i < capacity; i++) {
+            slots[i]          = new Slot();
+            slots[i].sequence = i;
+        }
+        writer = new java.lang.Thread(this, "Reporting writer " + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+    /*
+     * Claims the next free slot returning -1 if the buffer is full.
+     */
+    private long claim() {
+        long position = tail.get();
+
+        for (;;) {
+            long difference = slots[(int) position & mask].sequence - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) return position;
+
+                position = tail.get();
+            } else if (difference < 0) {
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+    /*
+     * Queues the report for the writer thread. Returns false if the report has been discarded, which it
+     * always is once the writer has been closed or its thread has failed, see run. The discarded reports are
+     * counted in dropped.
+     *
+     * The message is copied into the slot's buffer, which is reused, so once the slot buffers have grown to
+     * the size of the largest report queuing a report does not allocate any objects.
+     */
+    boolean output(String fileName, boolean retry, long time, String id, String threadIndex, String module, String ref, CharSequence message, Exception exception, boolean stackTrace) {
+        long position;
+
+        if (closed || failed) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (overflow == Overflow.SAMPLE && getDepth() > slots.length / 2 && sampled.getAndIncrement() % sampleRate != 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        while ((position = claim()) == -1) {
+            if (overflow != Overflow.BLOCK || closed || failed) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            wake();
+            LockSupport.parkNanos(50000);
+        }
+        Slot slot = slots[(int) position & mask];
+
+        slot.fileName    = fileName;
+        slot.retry       = retry;
+        slot.time        = time;
+        slot.id          = id;
+        slot.threadIndex = threadIndex;
+        slot.module      = module;
+        slot.ref         = ref;
+        slot.message.setLength(0);
+        slot.message.append(message);
+        slot.exception   = exception;
+        slot.stackTrace  = stackTrace;
+        slot.sequence    = position + 1;
+
+        if (waiting) wake();
+
+        return true;
+    }
+    private void wake() {
+        LockSupport.unpark(writer);
+    }
+    /*
+     * Writes all the queued reports and returns the number written.
+     */
+    private int drain() {
+        int  count    = 0;
+        long position = head;
+
+        for (;;) {
+            Slot slot = slots[(int) position & mask];
+
+            if (slot.sequence != position + 1) break;
+
+            try {
+                stream.write(slot.fileName, slot.retry, slot.time, slot.id, slot.threadIndex, slot.module, slot.ref, slot.message, slot.exception, slot.stackTrace, true);
+            } catch (RuntimeException e) {
+                dropped.incrementAndGet();
+                System.err.println("Reporting writer " + name + " exception " + e.toString());
+            }
+            slot.fileName  = null;
+            slot.module    = null;
+            slot.ref       = null;
+            slot.exception = null;
+
+            if (slot.message.capacity() > 16384) slot.message = new StringBuilder();
+
+            slot.sequence  = position + slots.length;
+            head           = ++position;
+            count++;
+        }
+        return count;
+    }
+    /*
+     * A report that cannot be written is discarded and the writer carries on. If the writer thread fails with
+     * an Error, failed is set so that the reports are discarded rather than waiting for a writer that no
+     * longer exists.
+     *
+     * On close the writer waits, for up to closeWait, for the reports that have been claimed but not yet
+     * queued before the final drain.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                if (drain() != 0) {
+                    endBatch();
+                    continue;
+                }
+                waiting = true;
+
+                if (getDepth() == 0 && !closed) LockSupport.parkNanos(this, idleWait);
+
+                waiting = false;
+            }
+            long deadline = System.nanoTime() + closeWait;
+
+            while (drain() != 0 || head != tail.get() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(50000);
+            }
+            stream.flush();
+        } catch (Error e) {
+            failed = true;
+            System.err.println("Reporting writer " + name + " failed " + e.toString());
+            throw e;
+        }
+    }
+    private void endBatch() {
+        try {
+            stream.endBatch();
+        } catch (RuntimeException e) {
+            System.err.println("Reporting writer " + name + " exception " + e.toString());
+        }
+    }
+    /*
+     * Stops the writer thread once all the queued reports have been written.
+     */
+    void close() {
+        closed = true;
+        wake();
+
+        if (java.lang.Thread.currentThread() != writer) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                java.lang.Thread.currentThread().interrupt();
+            }
+        }
+    }
+    int getQueueSize() {
+        return slots.length;
+    }
+    /*
+     * Returns the number of reports waiting to be written.
+     */
+    int getDepth() {
+        long depth = tail.get() - head;
+
+        return depth < 0 ? 0 : (int) depth;
+    }
+    long getDropped() {
+        return dropped.get();
+    }
+    Overflow getOverflow() {
+        return overflow;
+    }
+}
@@ -0,0 +1,154 @@
+package org.cbc.application.reporting;
+
+import org.cbc.application.Parameters;
+import org.cbc.application.Template;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes a file written by a stream with FORMAT=binary, see BinaryEncoder, and writes the reports as text
+ * lines with the report prefix rendered from the recorded fields. Run as
+ * <PRE>
+ *   java org.cbc.application.reporting.BinaryDecoder file [prefix]
+ * </PRE>
+ * File can be a compressed segment, i.e. end with .gz. Prefix is a template as used by the ARStream PREFIX
+ * property. The parameters ID, THREADINDEX, MOD and REF are set from the report, other parameters are not
+ * set. Prefix defaults to the report prefix of the stream that wrote the file, which is recorded in the
+ * file, so the reports are rendered as the stream would have written them. A file that does not record
+ * the prefix is rendered with defaultPrefix, the default prefix of the TRACE stream.
+ */
+public class BinaryDecoder {
+    public static final String                   defaultPrefix = "%H:%M:%S !ID! !MOD+c !!REF+c !";
+    private final       DataInputStream          in;
+    private final       Template                 override;
+    private             Template                 prefix;
+    private final       HashMap<Integer, String> dictionary    = new HashMap<Integer, String>();
+    private final       Parameters               params        = new Parameters();
+    private final       Parameters               local         = new Parameters();
+    private             ByteBuffer               record        = ByteBuffer.allocate(1024);
+
+    /**
+     * If prefix is null the reports are rendered with the prefix recorded in the file.
+     */
+    public BinaryDecoder(InputStream in, String prefix) {
+        this.in       = new DataInputStream(new BufferedInputStream(in));
+        this.override = prefix == null ? null : Template.compile(prefix);
+        this.prefix   = override == null ? Template.compile(defaultPrefix) : override;
+    }
+    private String getString(ByteBuffer data) {
+        int    length = data.getInt();
+        String value  = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+
+        data.position(data.position() + length);
+        return value;
+    }
+    private String getReference(ByteBuffer data) throws IOException {
+        int id = data.getInt();
+
+        if (id == 0) return null;
+
+        if (id == -1) return getString(data);
+
+        String value = dictionary.get(id);
+
+        if (value == null) throw new IOException("Dictionary entry " + id + " not defined");
+
+        return value;
+    }
+    private static void setValue(Parameters params, String name, String value) {
+        if (value == null) params.clear(name); else params.setValue(name, value);
+    }
+    /*
+     * Reads the next record into record returning its kind, or 0 at the end of the data. A length of 0
+     * is treated as the end of the data as it is the trailing zeros left in an unclosed mapped file.
+     */
+    private byte readRecord() throws IOException {
+        int length;
+
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return 0;
+        }
+        if (length == 0) return 0;
+
+        if (length < 2) throw new IOException("Invalid record length " + length);
+
+        if (record.capacity() < length) record = ByteBuffer.allocate(length);
+
+        record.clear();
+        in.readFully(record.array(), 0, length);
+        record.limit(length);
+
+        if (record.get(length - 1) != BinaryEncoder.terminator) throw new IOException("Record not terminated");
+
+        return record.get();
+    }
+    /**
+     * Reads the reports and writes them as text lines to out.
+     */
+    public void decode(PrintStream out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        byte          kind;
+
+        while ((kind = readRecord()) != 0) {
+            switch (kind) {
+                case BinaryEncoder.reset:
+                    if (record.getInt() != BinaryEncoder.magic) throw new IOException("Not a binary report file");
+
+                    dictionary.clear();
+                    /*
+                     * The prefix follows the magic unless the file was written before it was recorded.
+                     */
+                    if (override == null && record.remaining() > 1) prefix = Template.compile(getString(record));
+                    break;
+                case BinaryEncoder.define:
+                    int id = record.getInt();
+
+                    dictionary.put(id, getString(record));
+                    break;
+                case BinaryEncoder.report:
+                    long time = record.getLong();
+
+                    setValue(params, "ID",          getReference(record));
+                    setValue(params, "THREADINDEX", getReference(record));
+                    setValue(local,  "MOD",         getReference(record));
+                    setValue(local,  "REF",         getReference(record));
+                    line.setLength(0);
+                    prefix.render(line, params, local, time);
+                    line.append(getString(record));
+                    out.println(line);
+                    break;
+                default:
+                    throw new IOException("Record kind " + kind + " not recognised");
+            }
+        }
+    }
+    public static void main(String[] args) throws IOException {
+        InputStream in;
+
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: BinaryDecoder file [prefix]");
+            System.exit(1);
+        }
+        in = new FileInputStream(args[0]);
+
+        if (args[0].endsWith(".gz")) in = new GZIPInputStream(in);
+
+        try {
+            new BinaryDecoder(in, args.length == 2 ? args[1] : null).decode(System.out);
+        } finally {
+            in.close();
+        }
+        System.out.flush();
+    }
+}
@@ -0,0 +1,175 @@
+package org.cbc.application.reporting;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Encodes reports in the binary format selected by the ARStream property FORMAT=binary. Instead of
+ * rendering the report prefix the fields it is built from are written, with the strings that repeat,
+ * i.e. ID, THREADINDEX, MOD and REF, replaced by a reference to a string dictionary held in the file.
+ * <P>
+ * A file is a sequence of records. Each record is
+ * <PRE>
+ *   int  length   The number of bytes following the length.
+ *   byte kind     RESET, DEFINE or REPORT.
+ *        payload
+ *   byte '\n'     Terminator. Records never end with a zero byte, so the trailing zeros left in a mapped
+ *                 file that was not closed are not mistaken for data.
+ * </PRE>
+ * The payloads are
+ * <PRE>
+ *   RESET  int magic, string prefix              Starts a new dictionary. Written when the file is opened.
+ *                                                Prefix is the report prefix template of the stream.
+ *   DEFINE int id, string value                  Adds value to the dictionary as id.
+ *   REPORT long time, ref ID, ref THREADINDEX,
+ *          ref MOD, ref REF, string text         Time is milliseconds since the epoch.
+ * </PRE>
+ * A string is an int byte count followed by the UTF-8 bytes. A ref is an int dictionary id, 0 for null,
+ * or -1 followed by a string if the dictionary is full. The dictionary is limited to maxDictionary entries
+ * as REF can be different for every report.
+ * <P>
+ * For the TRACE stream the trace type, with any !! codes, is passed as REF.
+ * <P>
+ * The file is decoded by BinaryDecoder.
+ */
+class BinaryEncoder {
+    static final         int                      magic         = 0x41524231; //ARB1
+    static final         byte                     reset         = 1;
+    static final         byte                     define        = 2;
+    static final         byte                     report        = 3;
+    static final         byte                     terminator    = '\n';
+    private static final int                      maxDictionary = 65536;
+    private final        HashMap<String, Integer> dictionary    = new HashMap<String, Integer>();
+    private final        CharsetEncoder           encoder       = StandardCharsets.UTF_8.newEncoder()
+                                                                            .onMalformedInput(CodingErrorAction.REPLACE)
+                                                                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private              ByteBuffer               record        = ByteBuffer.allocate(1024);
+    private final        String                   prefix;
+    private              boolean                  started       = false;
+
+    /*
+     * Prefix is the report prefix template of the stream, which is recorded in the file so that the
+     * decoder renders the reports as the stream would have written them.
+     */
+    BinaryEncoder(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /*
+     * Ensures record has space for another size bytes.
+     */
+    private void ensureSpace(int size) {
+        if (record.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * record.capacity(), record.position() + size));
+
+            record.flip();
+            larger.put(record);
+            record = larger;
+        }
+    }
+    private void begin(byte kind) {
+        record.clear();
+        record.putInt(0);
+        record.put(kind);
+    }
+    private void end(ReportWriter out) throws IOException {
+        ensureSpace(1);
+        record.put(terminator);
+        record.putInt(0, record.position() - 4);
+        record.flip();
+        out.writeBytes(record);
+    }
+    private void encode(CharSequence text) {
+        CharBuffer input = CharBuffer.wrap(text);
+
+        ensureSpace(3 * text.length());
+        encoder.reset();
+        encoder.encode(input, record, true);
+        encoder.flush(record);
+    }
+    private void putString(CharSequence value) {
+        int start;
+
+        ensureSpace(4);
+        start = record.position();
+        record.putInt(0);
+        encode(value);
+        record.putInt(start, record.position() - start - 4);
+    }
+    /*
+     * Returns the dictionary id for value, writing a DEFINE record if value is not in the dictionary. Returns
+     * 0 if value is null and -1 if the dictionary is full.
+     */
+    private int reference(ReportWriter out, String value) throws IOException {
+        if (value == null) return 0;
+
+        Integer id = dictionary.get(value);
+
+        if (id != null) return id;
+
+        if (dictionary.size() >= maxDictionary) return -1;
+
+        id = dictionary.size() + 1;
+        dictionary.put(value, id);
+        begin(define);
+        record.putInt(id);
+        putString(value);
+        end(out);
+        return id;
+    }
+    private void putReference(int id, String value) {
+        ensureSpace(4);
+        record.putInt(id);
+
+        if (id == -1) putString(value);
+    }
+    /*
+     * Writes a report record to out. The exception is added to the text as it is for text reports.
+     */
+    void write(ReportWriter out, long time, String id, String threadIndex, String module, String ref, CharSequence text, Exception exception, boolean stackTrace) throws IOException {
+        int idRef;
+        int threadRef;
+        int moduleRef;
+        int refRef;
+
+        if (!started) {
+            begin(reset);
+            record.putInt(magic);
+            putString(prefix);
+            end(out);
+            started = true;
+        }
+        idRef     = reference(out, id);
+        threadRef = reference(out, threadIndex);
+        moduleRef = reference(out, module);
+        refRef    = reference(out, ref);
+
+        if (exception != null) {
+            StringWriter trace = new StringWriter();
+
+            if (stackTrace) {
+                trace.append(System.lineSeparator());
+                exception.printStackTrace(new PrintWriter(trace));
+            } else {
+                trace.append(" exception ").append(exception.getClass().getSimpleName()).append("-").append(exception.getMessage());
+            }
+            text = new StringBuilder(text).append(trace.getBuffer());
+        }
+        begin(report);
+        ensureSpace(8);
+        record.putLong(time);
+        putReference(idRef, id);
+        putReference(threadRef, threadIndex);
+        putReference(moduleRef, module);
+        putReference(refRef, ref);
+        putString(text);
+        end(out);
+    }
+}
@@ -0,0 +1,99 @@
+package org.cbc.application.reporting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends to a file through a FileChannel opened in append mode. Reports are encoded into a reusable
+ * direct buffer, which is written to the channel when it is full or the writer is flushed.
+ * <P>
+ * When the buffer is full only the whole reports in it are written, see endRecord, and a report larger
+ * than the buffer grows it. As with FileWriter append, each channel write is an atomic append, so the
+ * reports written via OutputFile are not split and the file can be shared by more than one process.
+ * Text written directly via OutputFile.out is only written whole if it is followed by a report or a flush.
+ */
+class ChannelFileWriter extends ReportWriter {
+    private static final int         bufferSize = 8192;
+    private final        FileChannel channel;
+    private              ByteBuffer  buffer     = ByteBuffer.allocateDirect(bufferSize);
+    private              int         recordEnd  = 0;
+    private              long        written;
+
+    ChannelFileWriter(File file) throws IOException {
+        channel = new FileOutputStream(file, true).getChannel();
+        written = channel.size();
+    }
+    @Override
+    protected ByteBuffer getBuffer() {
+        return buffer;
+    }
+    /*
+     * Writes the buffer contents up to end to the channel and moves the rest to the start of the buffer.
+     */
+    private void drain(int end) throws IOException {
+        int position = buffer.position();
+
+        buffer.flip();
+        buffer.limit(end);
+
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        buffer.limit(position);
+        buffer.compact();
+        recordEnd = 0;
+    }
+    /*
+     * Writes the whole reports in the buffer, or, if the buffer only holds part of a report, doubles its size.
+     */
+    @Override
+    protected void overflow() throws IOException {
+        if (recordEnd > 0) {
+            drain(recordEnd);
+        } else {
+            ByteBuffer larger = ByteBuffer.allocateDirect(2 * buffer.capacity());
+
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+    @Override
+    void endRecord() {
+        writeLock.lock();
+        try {
+            recordEnd = buffer.position();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (!isClosed()) drain(buffer.position());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    @Override
+    long size() {
+        writeLock.lock();
+        try {
+            return written + buffer.position();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    @Override
+    protected void closeFile() throws IOException {
+        try {
+            drain(buffer.position());
+        } finally {
+            channel.close();
+        }
+    }
+}
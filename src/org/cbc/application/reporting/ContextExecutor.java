@@ -0,0 +1,83 @@
+package org.cbc.application.reporting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An ExecutorService that runs the tasks submitted to it with the reporting context of the submitting
+ * thread, see Report.wrap. Everything else is passed to the wrapped executor.
+ */
+class ContextExecutor implements ExecutorService {
+    private final ExecutorService executor;
+
+    ContextExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+    private <T> List<Callable<T>> wrap(Collection<? extends Callable<T>> tasks) {
+        List<Callable<T>> wrapped = new ArrayList<Callable<T>>(tasks.size());
+
+        for (Callable<T> task : tasks) {
+            wrapped.add(Report.wrap(task));
+        }
+        return wrapped;
+    }
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(Report.wrap(task));
+    }
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(Report.wrap(task));
+    }
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return executor.submit(Report.wrap(task), result);
+    }
+    @Override
+    public Future<?> submit(Runnable task) {
+        return executor.submit(Report.wrap(task));
+    }
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        return executor.invokeAll(wrap(tasks));
+    }
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.invokeAll(wrap(tasks), timeout, unit);
+    }
+    @Override
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        return executor.invokeAny(wrap(tasks));
+    }
+    @Override
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return executor.invokeAny(wrap(tasks), timeout, unit);
+    }
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+    @Override
+    public List<Runnable> shutdownNow() {
+        return executor.shutdownNow();
+    }
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,162 @@
+package org.cbc.application.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends to a file through a memory mapped region of its FileChannel. The region is allocated beyond
+ * the end of the data and when it is full the next region is mapped. Characters are encoded directly
+ * into the mapped region.
+ * <P>
+ * The file is truncated to the end of the data when it is closed. If the writer is not closed, e.g. the
+ * process is killed, the file is left with trailing zero bytes, which are overwritten when the file is
+ * next opened.
+ * <P>
+ * Unlike FileWriter append the writes are not atomic appends, so a mapped file must not be written
+ * by more than one process at a time.
+ * <P>
+ * Each region is unmapped as soon as the next is mapped and before the file is truncated, so the mapped
+ * memory does not grow until the buffers are garbage collected and the file can be truncated and renamed
+ * on Windows. Java has no public API for this, so the JDK cleaner is used. If it is not available and the
+ * platform does not allow a mapped file to be truncated or renamed, see isSupported, mapped files are
+ * not used.
+ */
+class MappedFileWriter extends ReportWriter {
+    private static final int              regionSize = 4 * 1024 * 1024;
+    private final        FileChannel      channel;
+    private              MappedByteBuffer region;
+    private              long             regionStart;
+    private static final Object           unsafe;
+    private static final Method           cleaner;
+
+    static {
+        Object instance = null;
+        Method method   = null;
+        /*
+         * Java 9 and later provide Unsafe.invokeCleaner, Java 8 the cleaner of the direct buffer.
+         */
+        try {
+            Class<?> type  = Class.forName("sun.misc.Unsafe");
+            Field    field = type.getDeclaredField("theUnsafe");
+
+            field.setAccessible(true);
+            instance = field.get(null);
+            method   = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            try {
+                method = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            } catch (ReflectiveOperationException | RuntimeException e8) {
+                method = null;
+            }
+            instance = null;
+        }
+        unsafe  = instance;
+        cleaner = method;
+    }
+    /*
+     * Releases the mapping of buffer, which must not be accessed afterwards. Returns false if the buffer
+     * cannot be unmapped, in which case it is released when it is garbage collected.
+     */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        if (cleaner == null) return false;
+
+        try {
+            if (unsafe != null) {
+                cleaner.invoke(unsafe, buffer);
+            } else {
+                Object clean = cleaner.invoke(buffer);
+
+                if (clean == null) return false;
+
+                clean.getClass().getMethod("clean").invoke(clean);
+            }
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+    /**
+     * @return true if the file can be written via a mapped writer. On Windows a mapped file cannot be
+     * truncated or renamed, so this is only true if the regions can be unmapped.
+     */
+    static boolean isSupported() {
+        return cleaner != null || File.separatorChar != '\\';
+    }
+    MappedFileWriter(File file) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        map(dataEnd());
+    }
+    /*
+     * Returns the position following the last non zero byte in the file. Only the last region size bytes
+     * are checked as this is the most that can be left by an unclosed writer.
+     */
+    private long dataEnd() throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(8192);
+        long       end   = channel.size();
+        long       limit = Math.max(0, end - regionSize);
+
+        while (end > limit) {
+            long start = Math.max(limit, end - block.capacity());
+
+            block.clear();
+            block.limit((int) (end - start));
+            channel.read(block, start);
+
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) != 0) return start + i + 1;
+            }
+            end = start;
+        }
+        return end;
+    }
+    private void map(long position) throws IOException {
+        region      = channel.map(FileChannel.MapMode.READ_WRITE, position, regionSize);
+        regionStart = position;
+    }
+    @Override
+    protected ByteBuffer getBuffer() {
+        return region;
+    }
+    @Override
+    protected void overflow() throws IOException {
+        MappedByteBuffer full = region;
+
+        map(regionStart + region.position());
+        unmap(full);
+    }
+    /*
+     * Mapped writes are visible to other readers of the file as soon as they are made, so there is
+     * nothing to flush.
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+    @Override
+    long size() {
+        writeLock.lock();
+        try {
+            return isClosed() ? regionStart : regionStart + region.position();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    @Override
+    protected void closeFile() throws IOException {
+        region.force();
+
+        regionStart += region.position();
+        unmap(region);
+        region       = null;
+        try {
+            channel.truncate(regionStart);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -2,7 +2,6 @@ package org.cbc.application.reporting;
 
 import org.cbc.application.MeasurementInterface;
 import java.io.Serializable;
-import java.text.DecimalFormat;
 
 /**
  * @version <b>v1.0, 11/Jun/01, C.B. Close:</b> Initial version.
@@ -49,7 +48,7 @@ public class Measurement implements MeasurementInterface, Serializable {
                 false,
                 null,
                 text + " " + ((relative) ? "R time " : "A time ")
-                + fmt.format(time / 1000.0)
+                + Timing.appendSeconds(new StringBuilder(), time * 1000000L, 3)
                 + " memory free " + free
                 + " total " + current.totalMemory);
     }
@@ -57,7 +56,6 @@ public class Measurement implements MeasurementInterface, Serializable {
     public void report(boolean relative, String text) {
         report(relative, null, text);
     }
-    private transient static DecimalFormat fmt          = new DecimalFormat("0.000");
     private transient        ProcessStats  stats        = null;
     private transient        ProcessStats  initialStats = Thread.getInitialStats();
     private transient        boolean       measure      = Thread.getMeasure();
@@ -0,0 +1,98 @@
+package org.cbc.application.reporting;
+
+import org.cbc.application.Token;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches names against the module or group list of a TraceMask. The list is compiled when the mask is
+ * created and the matcher is not changed after it is created, so it can be used by any number of threads.
+ * <P>
+ * If wildcards is true the patterns are matched as by Token.isMatch. Patterns without a * are held in a
+ * set of names, patterns of the form prefix* are held in a trie of the prefixes, and only the other patterns
+ * are matched one by one with Token.isMatch. If wildcards is false the patterns are names.
+ * <P>
+ * The result for each name is cached, as the same module names are checked each time a module is entered.
+ * The cache is limited to maxCache names. A mask derived from another with the same list shares its
+ * matcher, so the cache is only discarded when the list is changed.
+ */
+class NameMatcher implements Serializable {
+    private static final int                                  maxCache = 4096;
+    private final        boolean                              upperCase;
+    private final        HashSet<String>                      names    = new HashSet<String>();
+    private final        Node                                 prefixes = new Node();
+    private final        ArrayList<String>                    patterns = new ArrayList<String>();
+    private final        ConcurrentHashMap<String, Boolean>   cache    = new ConcurrentHashMap<String, Boolean>();
+
+    private static class Node implements Serializable {
+        HashMap<Character, Node> next = new HashMap<Character, Node>();
+        boolean                  end  = false;
+    }
+    /*
+     * If upperCase is true names are converted to upper case before they are matched.
+     */
+    NameMatcher(Collection<String> list, boolean wildcards, boolean upperCase) {
+        this.upperCase = upperCase;
+
+        for (String pattern : list) {
+            int star = pattern.indexOf('*');
+
+            if (!wildcards || star == -1) {
+                names.add(pattern);
+            } else if (star == pattern.length() - 1) {
+                addPrefix(pattern.substring(0, star));
+            } else {
+                patterns.add(pattern);
+            }
+        }
+    }
+    private void addPrefix(String prefix) {
+        Node node = prefixes;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            Node next = node.next.get(prefix.charAt(i));
+
+            if (next == null) {
+                next = new Node();
+                node.next.put(prefix.charAt(i), next);
+            }
+            node = next;
+        }
+        node.end = true;
+    }
+    private boolean hasPrefix(String name) {
+        Node node = prefixes;
+
+        for (int i = 0; !node.end && i < name.length(); i++) {
+            if ((node = node.next.get(name.charAt(i))) == null) return false;
+        }
+        return node.end;
+    }
+    private boolean match(String name) {
+        if (upperCase) name = name.toUpperCase();
+
+        if (names.contains(name) || hasPrefix(name)) return true;
+
+        for (String pattern : patterns) {
+            if (Token.isMatch(pattern, name)) return true;
+        }
+        return false;
+    }
+    /*
+     * Returns true if name matches any of the patterns.
+     */
+    boolean matches(String name) {
+        Boolean result = cache.get(name);
+
+        if (result == null) {
+            result = match(name);
+
+            if (cache.size() < maxCache) cache.put(name, result);
+        }
+        return result;
+    }
+}
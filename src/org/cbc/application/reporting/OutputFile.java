@@ -1,13 +1,19 @@
 package org.cbc.application.reporting;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @version <b>v1.0, 11/Jun/01, C.B. Close:</b> Initial version.
@@ -15,45 +21,355 @@ import java.util.HashMap;
  */
 public class OutputFile implements Serializable {
 
-    private static transient       HashMap<File, OutputFile> files = new HashMap<File, OutputFile>();
-    private static transient final Object                    lock  = new Object();
-    public  transient              PrintWriter               out   = null;
-    private transient              int                       opens = 0;
-    private                        File                      file  = null;
+    private static transient       HashMap<File, OutputFile> files          = new HashMap<File, OutputFile>();
+    private static transient final ReentrantLock             lock           = new ReentrantLock();
+    private final                  ReentrantLock             writeLock      = new ReentrantLock();
+    public  transient              PrintWriter               out            = null;
+    private transient              int                       opens          = 0;
+    private                        File                      file           = null;
+    private transient              ReportWriter              writer         = null;
+    private transient              int                       pendingRecords = 0;
+    private transient              long                      flushedSize    = 0;
+    private transient              boolean                   flushScheduled = false;
+    private transient              long                      maxSize        = 0;
+    private transient              int                       maxFiles       = 0;
+    private transient              BinaryEncoder             encoder        = null;
+    
+    /**
+     * Determines when the reports written to an output file are flushed. The policy is one of
+     * <PRE>    always, n records, n bytes or n ms</PRE>
+     * i.e. the file is flushed after every report, once n reports or n bytes, after encoding, have been
+     * written since the last flush, or n milliseconds after the first report written since the last flush.
+     */
+    public static class FlushPolicy {
+        public static final FlushPolicy ALWAYS = new FlushPolicy(0, 0);
+        
+        private static final int        recordsType = 1;
+        private static final int        bytesType   = 2;
+        private static final int        timeType    = 3;
+        private final        int        type;
+        private final        long       limit;
+        
+        private FlushPolicy(int type, long limit) {
+            this.type  = type;
+            this.limit = limit;
+        }
+        /**
+         * Returns the policy defined by policy or null if it is not valid.
+         */
+        public static FlushPolicy parse(String policy) {
+            String[] fields = policy.trim().toLowerCase().split("\\s+");
+            
+            if (fields.length == 1 && fields[0].equals("always")) return ALWAYS;
+            
+            if (fields.length != 2) return null;
+            
+            long limit;
+            
+            try {
+                limit = Long.parseLong(fields[0]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (limit <= 0) return null;
+            
+            switch (fields[1]) {
+                case "records":
+                    return new FlushPolicy(recordsType, limit);
+                case "bytes":
+                    return new FlushPolicy(bytesType, limit);
+                case "ms":
+                    return new FlushPolicy(timeType, limit);
+            }
+            return null;
+        }
+        public boolean isAlways() {
+            return type == 0;
+        }
+        @Override
+        public String toString() {
+            switch (type) {
+                case recordsType:
+                    return limit + " records";
+                case bytesType:
+                    return limit + " bytes";
+                case timeType:
+                    return limit + " ms";
+            }
+            return "always";
+        }
+    }
 
-    private OutputFile(File file) throws IOException {
-        out   = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+    /*
+     * If mapped is true the file is written via a memory mapped FileChannel, if supported by the platform,
+     * otherwise, via a FileChannel opened for append. Out writes via the same writer, so reports written via out and println are
+     * written in the order they are made.
+     */
+    private OutputFile(File file, boolean mapped) throws IOException {
         this.file = file;
+        openWriter(mapped);
     }
-    public static OutputFile open(File file, boolean share) throws IOException {
+    /*
+     * Opens the writer. A binary file restarts its dictionary each time the writer is opened.
+     */
+    private void openWriter(boolean mapped) throws IOException {
+        writer  = mapped && MappedFileWriter.isSupported() ? new MappedFileWriter(file) : new ChannelFileWriter(file);
+        out         = new PrintWriter(writer);
+        encoder     = null;
+        flushedSize = writer.size();
+    }
+    /**
+     * Opens file for append. If share is true and the file is already open the existing OutputFile is
+     * returned, in which case mapped is ignored, i.e. the writer is determined by the first open.
+     */
+    public static OutputFile open(File file, boolean share, boolean mapped) throws IOException {
         OutputFile out;
 
         if (share) {
-            synchronized(lock) {
+            lock.lock();
+            try {
                 out = files.get(file);
                 
                 if (out == null) {
-                    out = new OutputFile(file);
+                    out = new OutputFile(file, mapped);
                     files.put(file, out);
                 } 
                 out.opens += 1;
+            } finally {
+                lock.unlock();
             }
         } else {
-            out       = new OutputFile(file);
+            out       = new OutputFile(file, mapped);
             out.opens = -1;
         }
         return out;
     }
+    public static OutputFile open(File file, boolean share) throws IOException {
+        return open(file, share, false);
+    }
 
     public static OutputFile open(String file, boolean share) throws IOException {
         return open(new File(file), share);
     }
 
-    public static OutputFile open(String path, String file, boolean share) throws IOException {
+    public static OutputFile open(String path, String file, boolean share, boolean mapped) throws IOException {
         if (file.charAt(1) == ':')
-            return open(file, share);
+            return open(new File(file), share, mapped);
         else
-            return open(new File(path, file), share);
+            return open(new File(path, file), share, mapped);
+    }
+
+    public static OutputFile open(String path, String file, boolean share) throws IOException {
+        return open(path, file, share, false);
+    }
+    /**
+     * @return true if the file is written via a memory mapped FileChannel.
+     */
+    public boolean isMapped() {
+        return writer instanceof MappedFileWriter;
+    }
+    /**
+     * Returns the size in bytes defined by size, which is a number optionally followed by k, m or g for
+     * kilobytes, megabytes or gigabytes, or -1 if it is not valid.
+     */
+    public static long parseSize(String size) {
+        String value      = size.trim().toLowerCase();
+        long   multiplier = 1;
+
+        if (value.endsWith("b")) value = value.substring(0, value.length() - 1);
+
+        if (value.endsWith("k")) {
+            multiplier = 1024;
+        } else if (value.endsWith("m")) {
+            multiplier = 1024 * 1024;
+        } else if (value.endsWith("g")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier != 1) value = value.substring(0, value.length() - 1);
+
+        try {
+            long limit = Long.parseLong(value.trim());
+
+            return limit <= 0 ? -1 : limit * multiplier;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    /**
+     * Sets the file to roll when its size reaches maxSize bytes. The file is renamed to the next numbered
+     * segment, e.g. Trace.log.3, and a new file started. Finished segments are compressed by the background
+     * thread and only the last maxFiles are kept.
+     * <P>
+     * A maxSize of 0 disables rolling and a maxFiles of 0 keeps all the segments. If the file is shared by
+     * more than one stream the last call applies.
+     * <P>
+     * Rolling is not coordinated between processes, so a rolling file should only be written by one process.
+     */
+    public void setRolling(long maxSize, int maxFiles) {
+        writeLock.lock();
+        try {
+            this.maxSize  = maxSize;
+            this.maxFiles = maxFiles;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    /**
+     * Writes text followed by a line separator. The text is encoded directly into the writer's buffer, so
+     * no objects are allocated.
+     */
+    public void println(CharSequence text) {
+        println(text, null);
+    }
+    /**
+     * Writes text followed by a line separator and, if exception is not null, its stack trace. The stack
+     * trace is written under the same lock as the text, so reports written by other threads or streams
+     * sharing the file are not written between them.
+     */
+    public void println(CharSequence text, Throwable exception) {
+        try {
+            writeLock.lock();
+            try {
+                writer.writeLine(text);
+
+                if (exception != null) exception.printStackTrace(out);
+
+                writer.endRecord();
+
+                if (maxSize > 0 && writer.size() >= maxSize) roll();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Writing to " + getFilename() + " exception " + e.toString());
+        }
+    }
+    /**
+     * Writes a report in the binary format described by BinaryEncoder. A file must not be written by both
+     * println and writeRecord. Prefix is the report prefix template recorded in the file. If the file is
+     * shared by more than one stream the prefix of the first report written since the file was opened is
+     * recorded.
+     */
+    public void writeRecord(String prefix, long time, String id, String threadIndex, String module, String ref, CharSequence text, Exception exception, boolean stackTrace) {
+        try {
+            writeLock.lock();
+            try {
+                if (encoder == null) encoder = new BinaryEncoder(prefix);
+
+                encoder.write(writer, time, id, threadIndex, module, ref, text, exception, stackTrace);
+                writer.endRecord();
+
+                if (maxSize > 0 && writer.size() >= maxSize) roll();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Writing to " + getFilename() + " exception " + e.toString());
+        }
+    }
+    /*
+     * Returns the segment number of name if it is a segment of the file, or -1 if not.
+     */
+    private int segmentNumber(String name) {
+        String prefix = file.getName() + ".";
+
+        if (!name.startsWith(prefix)) return -1;
+
+        name = name.substring(prefix.length());
+
+        if (name.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    /*
+     * Returns the segment numbers of the file in ascending order.
+     */
+    private ArrayList<Integer> getSegments() {
+        ArrayList<Integer> segments = new ArrayList<Integer>();
+        String[]           names    = file.getAbsoluteFile().getParentFile().list();
+
+        if (names != null) {
+            for (String name : names) {
+                int number = segmentNumber(name);
+
+                if (number >= 0 && !segments.contains(number)) segments.add(number);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    private File getSegment(int number, boolean compressed) {
+        return new File(file.getAbsoluteFile().getParentFile(), file.getName() + "." + number + (compressed ? ".gz" : ""));
+    }
+    /*
+     * Closes the file, renames it to the next segment and opens a new file. The compression of the segment
+     * is left to the background thread.
+     */
+    private void roll() throws IOException {
+        ArrayList<Integer> segments = getSegments();
+        boolean            mapped   = isMapped();
+        File               segment  = getSegment(segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1, false);
+
+        writer.close();
+
+        if (!file.renameTo(segment)) {
+            System.err.println("Rolling " + getFilename() + " unable to rename to " + segment.getName());
+        }
+        openWriter(mapped);
+
+        final int keep = maxFiles;
+
+        Scheduler.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                compressSegments(keep);
+            }
+        });
+    }
+    /*
+     * Compresses the uncompressed segments and deletes the oldest segments so that only the last keep are
+     * left. If keep is 0 all segments are kept.
+     *
+     * A segment is compressed to a temporary file which is renamed when complete, so a segment that was
+     * being compressed when the process ended is compressed again on the next roll.
+     */
+    private void compressSegments(int keep) {
+        ArrayList<Integer> segments = getSegments();
+
+        for (int i = 0; i < segments.size(); i++) {
+            int number = segments.get(i);
+
+            if (keep > 0 && i < segments.size() - keep) {
+                getSegment(number, false).delete();
+                getSegment(number, true).delete();
+            } else if (getSegment(number, false).exists()) {
+                compress(getSegment(number, false), getSegment(number, true));
+            }
+        }
+    }
+    private void compress(File source, File target) {
+        File temp = new File(target.getPath() + ".tmp");
+
+        try {
+            try (InputStream in = new FileInputStream(source); OutputStream gz = new GZIPOutputStream(new FileOutputStream(temp))) {
+                byte[] block = new byte[65536];
+                int    count;
+
+                while ((count = in.read(block)) > 0) {
+                    gz.write(block, 0, count);
+                }
+            }
+            if (!temp.renameTo(target)) throw new IOException("Unable to rename " + temp.getName());
+
+            source.delete();
+        } catch (IOException e) {
+            temp.delete();
+            System.err.println("Compressing " + source.getAbsolutePath() + " exception " + e.toString());
+        }
     }
 
     public String getFilename() {
@@ -71,12 +387,85 @@ public class OutputFile implements Serializable {
         opens -= 1;
 
         if (opens == 0) {
-            synchronized (lock) {
+            lock.lock();
+            try {
                 out.close();
                 files.remove(file);
+            } finally {
+                lock.unlock();
             }
         }
     }
+    /*
+     * Flushes the reports written by the flush requested by a policy of n ms.
+     */
+    private void timedFlush() {
+        writeLock.lock();
+        try {
+            flushScheduled = false;
+        } finally {
+            writeLock.unlock();
+        }
+        flush();
+    }
+    /**
+     * Records that a report has been written and flushes the file if required by policy. If policy is null
+     * the report is counted but the file is not flushed.
+     * <P>
+     * The bytes written since the last flush are taken from the size of the file, so they are the encoded
+     * bytes, including any stack trace, rather than the characters in the report.
+     */
+    public void written(FlushPolicy policy) {
+        boolean flush = false;
+        
+        writeLock.lock();
+        try {
+            pendingRecords += 1;
+            
+            if (policy == null) return;
+            
+            switch (policy.type) {
+                case FlushPolicy.recordsType:
+                    flush = pendingRecords >= policy.limit;
+                    break;
+                case FlushPolicy.bytesType:
+                    flush = writer.size() - flushedSize >= policy.limit;
+                    break;
+                case FlushPolicy.timeType:
+                    if (!flushScheduled) {
+                        flushScheduled = true;
+                        Scheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                timedFlush();
+                            }
+                        }, policy.limit);
+                    }
+                    break;
+                default:
+                    flush = true;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (flush) flush();
+    }
+    /**
+     * Writes any buffered reports to the file. Out does not buffer, so the writer is flushed directly rather
+     * than via out, which would take the PrintWriter's monitor.
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            pendingRecords = 0;
+            writer.flush();
+            flushedSize    = writer.size();
+        } catch (IOException e) {
+            System.err.println("Flushing " + getFilename() + " exception " + e.toString());
+        } finally {
+            writeLock.unlock();
+        }
+    }
     /**
      * @return the out
      */
@@ -88,8 +477,6 @@ public class OutputFile implements Serializable {
         /*
          * Shared files are not synchronized, so open file as not shared.
          */
-        if (file != null) {
-            out   = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
-        }
+        if (file != null) openWriter(false);
     }
 }
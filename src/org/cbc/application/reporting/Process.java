@@ -7,8 +7,8 @@ package org.cbc.application.reporting;
  * @version <b>v1.3, 28/Nov/01, C.B. Close:</b> Remove text formatting.
  */
 import org.cbc.application.Configuration;
-import org.cbc.application.Interval;
 import org.cbc.application.Parameters;
+import org.cbc.application.Template;
 import org.cbc.application.Token;
 import java.io.BufferedReader;
 import java.io.File;
@@ -17,9 +17,21 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 /*
     private static final           int                      traceRefreshRate = 5;
@@ -29,19 +41,28 @@ import java.util.concurrent.locks.ReentrantLock;
  * need to be, so all its data is transient.
  */
 public class Process implements Serializable {
-    private static final           int                      traceRefreshRate = 5;
-    private static final           int                      fileRefreshRate  = 600;
-    private static transient final Object                   lock             = new Object();
-    private transient static       boolean                  initialised      = false;
-    private transient static       Configuration            config           = null;
-    private transient static       ReentrantLock            traceLock        = new ReentrantLock();
-    private transient static       HashMap<String, Process> processes        = new HashMap<String, Process>();
-    private transient static       String                   traceControl     = "TRACE.CTL";
-    private transient static       String                   configFile       = "ARConfig.cfg";
-    private transient static       String                   reportingRoot    = System.getProperty("user.home");
-    private transient static       boolean                  noTrace          = false;
-    private transient static       Interval                 traceRefresh     = new Interval(1000 * traceRefreshRate, true);
-    private transient static       Date                     lastUpdate       = null;
+    private static final           int                                traceRefreshRate = 5;
+    private static final           int                                traceSettleTime  = 100;
+    private static final           int                                fileRetryRate    = 600;
+    private static transient final ReentrantLock                      lock             = new ReentrantLock();
+    private transient static       boolean                            initialised      = false;
+    private transient static       Configuration                      config           = null;
+    private transient static       ReentrantLock                      traceLock        = new ReentrantLock();
+    private static transient final ConcurrentHashMap<String, Process> processes        = new ConcurrentHashMap<String, Process>();
+    private transient static       String                             traceControl     = "TRACE.CTL";
+    private transient static       String                             configFile       = "ARConfig.cfg";
+    private transient static       String                             reportingRoot    = System.getProperty("user.home");
+    private transient static       boolean                            noTrace          = false;
+    private static transient final ReentrantLock                      tracingLock      = new ReentrantLock();
+    private static transient final MutableCallSite                    tracingSite      = new MutableCallSite(MethodHandles.constant(boolean.class, false));
+    private static transient final MethodHandle                       tracingGuard     = tracingSite.dynamicInvoker();
+    private transient static       int                                tracing          = 0;
+    private transient static       boolean                            watchStarted     = false;
+    private transient static       WatchService                       traceWatch       = null;
+    private transient static       ScheduledFuture<?>                 tracePoll        = null;
+    private transient static       volatile Date                      lastUpdate       = null;
+    private transient static       boolean                            hookAdded        = false;
+    private transient static final ThreadLocal<ReportBuffer>          buffers          = new ThreadLocal<ReportBuffer>();
     
     /*
      * If file is a valid file its File object is returned, otherwise, it is assumed to be relative to the 
@@ -61,15 +82,26 @@ public class Process implements Serializable {
      * Can be used by other methods to determine if any of the process trace data could have changed.
      */
     public static Date getLastUpdate() {
-        updateTrace(false);
         return lastUpdate;
     }
 
     /**
-     * @param aTraceControl the traceControl to set
+     * @param aTraceControl the traceControl to set. If processes have already been created the watch is moved
+     * to the new file and it is applied to the processes.
      */
     public static void setTraceControl(String aTraceControl) {
-        traceControl = aTraceControl;
+        lock.lock();
+        try {
+            traceControl = aTraceControl;
+
+            if (processes.isEmpty()) return;
+
+            stopTraceWatch();
+            startTraceWatch();
+        } finally {
+            lock.unlock();
+        }
+        updateTrace(false);
     }
 
     /**
@@ -88,91 +120,233 @@ public class Process implements Serializable {
     public static File getConfigFile() {
         return getFile(configFile);
     }
+    /*
+     * The buffer in which a report is built and the local parameters used to build it. Each thread reuses
+     * its own buffer, unless it outputs a report while already outputting one, e.g. from an interceptor,
+     * in which case a new buffer is used.
+     */
+    private static class ReportBuffer {
+        StringBuilder text   = new StringBuilder(256);
+        Parameters    locals = new Parameters();
+        boolean       inUse  = false;
+
+        /*
+         * Returns locals set to ref and module, or null if they are both null.
+         *
+         * Report streams are called with ref and module null and the trace stream with both set, so in
+         * practice the same entries are replaced on each call and no objects are allocated.
+         */
+        Parameters setLocals(String ref, String module) {
+            if (ref == null && module == null) return null;
+
+            if (ref == null) locals.clear("REF"); else locals.setValue("REF", ref);
+
+            if (module == null) locals.clear("MOD"); else locals.setValue("MOD", module);
+
+            return locals;
+        }
+        void release() {
+            inUse = false;
+        }
+    }
+    /*
+     * Returns the empty report buffer for the current thread. The buffer must be released when the report
+     * is complete.
+     */
+    private static ReportBuffer getBuffer() {
+        ReportBuffer buffer = buffers.get();
+
+        if (buffer == null) {
+            buffer = new ReportBuffer();
+            buffers.set(buffer);
+        } else if (buffer.inUse) {
+            buffer = new ReportBuffer();
+        } else if (buffer.text.capacity() > 16384) {
+            buffer.text = new StringBuilder(256);
+        }
+        buffer.inUse = true;
+        buffer.text.setLength(0);
+        return buffer;
+    }
     private transient              Date                     updated          = null;
     private transient              HashMap<String, Stream>  streams          = new HashMap<String, Stream>();
     private transient              HashMap<String, String>  duplicates       = new HashMap<String, String>();
+    private transient              ReentrantLock            duplicatesLock   = new ReentrantLock();
     private transient              String                   identifier       = "";
     private transient              String                   errorEventId     = null;
-    private transient              TraceMask                trace            = new TraceMask();
+    private transient volatile     TraceMask                trace            = new TraceMask();
     private transient              boolean                  measurements     = true;
+    private transient              boolean                  nanoTime         = false;
+    private transient              boolean                  cpuTime          = false;
+    private transient              boolean                  allocated        = false;
     private transient              boolean                  traceEnabled     = true;
     private transient              String                   defaultTrace     = "+";
-    private transient              int                      maxTrace         = 100;
+    private transient volatile     int                      maxTrace         = 100;
     private transient              int                      maxDuplicates    = 100;
+    private transient final        AtomicInteger            attached         = new AtomicInteger(0);
+    private transient              boolean                  counted          = false;
 
     private void error(String report) {
         System.out.println(config.setPrefix(report, true));
     }
     /*
-     * If the Trace refresh time has elapsed or Immediate is true and tracing is enabled,
-     * the traceControl file is read and acted upon.
+     * Reads the trace control file and applies it to the processes if it has been modified since it was last
+     * read or force is true. It is called by the trace control watcher, see startTraceWatch, and by
+     * reloadTraceControl, so it is not called by threads checking trace.
      *
-     * The control value consists of [Identifier]:Mask. If Identifier is
-     * present the mask is applied to the configuration if it exists,
+     * The control value consists of [Identifier]:Mask, [Identifier]*Groups or [Identifier]$Modules, see
+     * Trace for the syntax. If Identifier is present the mask is applied to the configuration if it exists,
      * otherwise, Mask is applied to all the configurations.
+     *
+     * Trace masks are not changed once created, so the masks for the file are built while it is read and
+     * replace the process masks once the whole file has been read. So a thread checking trace sees either the
+     * old or the new settings of a process, and does not take a lock.
      */
-    protected static void updateTrace(boolean immediate) {
-        if (traceControl == null) return;
+    protected static void updateTrace(boolean force) {
+        if (traceControl == null || noTrace) return;
         
         File tFile = getFile(traceControl);
        
-        if (!tFile.exists() || noTrace || !(traceRefresh.lapsed() || immediate)) {
-            return;
-        } 
-        Date fileTime = new Date(tFile.lastModified());
+        if (!tFile.exists()) return;
         /*
-         * Return if the traceControl modified time is before or equal to the last process update.
+         * Return if this thread is already updating trace.
          */
-        if (getLastUpdate() != null && fileTime.compareTo(getLastUpdate()) <= 0) return;
-        /*
-         * Return if any thread already has the lock. If the lock is held then trace update is
-         * in progress and repeating the update will yield the same reult.
-         */
-        if (traceLock.getHoldCount() != 0 || !traceLock.tryLock()) return;
+        if (traceLock.getHoldCount() != 0) return;
         
+        traceLock.lock();
         try {
-            String         line;
-            BufferedReader br    = new BufferedReader(new FileReader(traceControl));
+            Date fileTime = new Date(tFile.lastModified());
+            /*
+             * Return if the traceControl modified time is before or equal to the last process update.
+             */
+            if (!force && lastUpdate != null && fileTime.compareTo(lastUpdate) <= 0) return;
 
-            while ((line = br.readLine()) != null) {
-                Token  mask       = new Token(line.trim());
-                String delimiters = ":*$";
-                String identifier = "";
-                char   ch         = '\0';
+            if (readControl(tFile, null, fileTime)) lastUpdate = fileTime;
+        } finally {
+            traceLock.unlock();
+        }
+    }
+    /*
+     * Applies the trace control file to process when it is created. Only the lines that apply to process are
+     * applied, so the settings of the other processes, which may have been changed by the API since the file
+     * was read, are kept.
+     *
+     * If the file has not been read before its modified time is recorded as the last update, so the trace
+     * poll does not apply the unchanged file to all the processes.
+     */
+    private static void updateTrace(Process process) {
+        if (traceControl == null || noTrace) return;
 
-                while (mask.moreCharacters() && delimiters.indexOf(ch = mask.nextCharacter()) == -1) {
-                    identifier += ch;
-                }
-                identifier = identifier.trim();
-                /*
-                 * If the mask does not start with an identifier, set the token extract to the start
-                 * to replace characters read in attempting to find an identifier.
-                 */
-                if (delimiters.indexOf(ch) == -1) {
-                    mask.setIndex(0);
-                }
-                if (identifier.equals("")) {
-                    int index = mask.getIndex();
+        File tFile = getFile(traceControl);
 
-                    for (Process p : processes.values()) {
-                        p.setTrace(mask, ch);
-                        p.updated = fileTime;
-                        mask.setIndex(index);
-                    }
-                } else {
-                    Process process = processes.get(identifier);
+        if (!tFile.exists() || traceLock.getHoldCount() != 0) return;
 
-                    if (process != null) {
-                        process.setTrace(mask, ch);
-                        process.updated = fileTime;
-                    }
-                }
+        traceLock.lock();
+        try {
+            Date fileTime = new Date(tFile.lastModified());
+
+            if (readControl(tFile, process, fileTime) && lastUpdate == null) lastUpdate = fileTime;
+        } finally {
+            traceLock.unlock();
+        }
+    }
+    /*
+     * Reads the trace control file and applies it to process, or to all the processes if process is null.
+     * Returns false if the file could not be read, in which case the processes are not changed. Must be called
+     * holding traceLock.
+     */
+    private static boolean readControl(File tFile, Process process, Date time) {
+        HashMap<Process, TraceMask> masks = new HashMap<Process, TraceMask>();
+        HashMap<Process, Integer>   level = new HashMap<Process, Integer>();
+        String                      line;
+
+        try (BufferedReader br = new BufferedReader(new FileReader(tFile))) {
+            while ((line = br.readLine()) != null) {
+                applyControl(masks, level, line, process);
             }
-            br.close();
         } catch (IOException e) {
+            return false;
+        }
+        publishTrace(masks, level, time);
+        return true;
+    }
+    /*
+     * Applies the trace control line to the process entries in masks and levels, see setTrace. If only is not
+     * null the line is only applied to it.
+     */
+    private static void applyControl(HashMap<Process, TraceMask> masks, HashMap<Process, Integer> levels, String line, Process only) {
+        Token  mask       = new Token(line.trim());
+        String delimiters = ":*$";
+        String identifier = "";
+        char   ch         = '\0';
+
+        while (mask.moreCharacters() && delimiters.indexOf(ch = mask.nextCharacter()) == -1) {
+            identifier += ch;
+        }
+        identifier = identifier.trim();
+        /*
+         * If the mask does not start with an identifier, set the token extract to the start
+         * to replace characters read in attempting to find an identifier.
+         */
+        if (delimiters.indexOf(ch) == -1) {
+            mask.setIndex(0);
+        }
+        if (identifier.equals("")) {
+            int index = mask.getIndex();
+
+            for (Process p : processes.values()) {
+                if (only != null && p != only) continue;
+
+                p.setTrace(masks, levels, mask, ch);
+                mask.setIndex(index);
+            }
+        } else {
+            Process process = processes.get(identifier);
+
+            if (process != null && (only == null || process == only)) {
+                process.setTrace(masks, levels, mask, ch);
+            }
+        }
+    }
+    /*
+     * Replaces the trace masks and levels of the processes in masks with the new values. Must be called
+     * holding traceLock.
+     */
+    private static void publishTrace(HashMap<Process, TraceMask> masks, HashMap<Process, Integer> levels, Date time) {
+        for (Process p : masks.keySet()) {
+            if (levels.containsKey(p)) p.maxTrace = levels.get(p);
+
+            p.trace   = masks.get(p);
+            p.updated = time;
+            p.updateTracing();
+        }
+    }
+    /**
+     * Applies lines, in the format of the trace control file, to the processes. The changes take effect
+     * immediately and remain until changed by the API or by a line of the trace control file when it is
+     * next modified.
+     * <P>
+     * All the lines are applied before the processes see the changes, as for the trace control file.
+     */
+    public static void applyTraceControl(String... lines) {
+        HashMap<Process, TraceMask> masks  = new HashMap<Process, TraceMask>();
+        HashMap<Process, Integer>   levels = new HashMap<Process, Integer>();
+
+        traceLock.lock();
+        try {
+            for (String line : lines) {
+                applyControl(masks, levels, line, null);
+            }
+            publishTrace(masks, levels, new Date());
+        } finally {
+            traceLock.unlock();
         }
-        lastUpdate = fileTime;
-        traceLock.unlock();
+    }
+    /**
+     * Reads the trace control file and applies it to the processes, even if it has not been modified.
+     */
+    public static void reloadTraceControl() {
+        updateTrace(true);
     }
     private static void initialise() {
         
@@ -195,10 +369,23 @@ public class Process implements Serializable {
         }
         initialised = true;
     }
+    /*
+     * Returns the process for identifier, creating it if it does not exist. Finding an existing process is a
+     * read of processes without taking a lock. Trace control changes are picked up by the watcher, see
+     * startTraceWatch, rather than on lookup.
+     *
+     * A process is created under the lock, rather than by processes.computeIfAbsent, as creating it reads the
+     * configuration and applies the trace control to it, which must be done after it is in processes. Only the
+     * trace control for the new process is applied, see updateTrace(Process). Its TraceControl MBean is then
+     * registered.
+     */
     public static Process getProcess(String identifier) {
-        Process process;
-        
-        synchronized (lock) {
+        Process process = processes.get(identifier);
+
+        if (process != null) return process;
+
+        lock.lock();
+        try {
             process = processes.get(identifier);
 
             if (process == null) {
@@ -207,19 +394,183 @@ public class Process implements Serializable {
                 
                 if (process.traceEnabled) noTrace = false;
                 
-                lastUpdate = null;
-                updateTrace(true);
-            } else {
-                updateTrace(false);
+                updateTrace(process);
+                startTraceWatch();
+                TraceControl.register(process);
             }
+        } finally {
+            lock.unlock();
         }
         return process;
     }
+    /*
+     * Returns true if trace is enabled for any process that has threads attached. This is maintained as the
+     * threads are attached and detached and the trace settings change.
+     *
+     * The state is held as the target of tracingSite, which is only changed when tracing is turned on or off.
+     * As tracingGuard is a static final invoker of the call site, the JIT compiles the call as a constant that
+     * is recompiled when the target changes, so a trace check costs nothing while no process is tracing.
+     */
+    static boolean isTracing() {
+        try {
+            return (boolean) tracingGuard.invokeExact();
+        } catch (Throwable e) {
+            return true;
+        }
+    }
+    /*
+     * Starts the watcher that reads the trace control file when it is changed. The trace checks do not read
+     * the file, so that they never touch the file system.
+     *
+     * The directory of the file is watched by a WatchService on a daemon thread. If the file system does not
+     * support this the file is polled at the trace refresh rate by a scheduled task. Nothing is watched if
+     * there is no trace control file, see setTraceControl.
+     *
+     * The watcher is started and stopped holding lock.
+     */
+    private static void startTraceWatch() {
+        if (watchStarted || traceControl == null) return;
+
+        watchStarted = true;
+
+        try {
+            final File         file    = getFile(traceControl).getAbsoluteFile();
+            final Path         dir     = file.getParentFile().toPath();
+            final WatchService service = dir.getFileSystem().newWatchService();
+
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            traceWatch = service;
 
+            java.lang.Thread watcher = new java.lang.Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watchTrace(service, file.getName());
+                }
+            }, "Reporting trace control watcher");
+
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            startTracePoll();
+        }
+    }
+    private static void startTracePoll() {
+        tracePoll = Scheduler.scheduleRepeated(new Runnable() {
+            @Override
+            public void run() {
+                updateTrace(false);
+            }
+        }, 1000L * traceRefreshRate, 1000L * traceRefreshRate);
+    }
+    /*
+     * Waits for changes to the file called name in the directory watched by service. After a change the
+     * watcher waits for traceSettleTime, so that the file has been written and the events for a single
+     * change are read together, before reading the file.
+     */
+    private static void watchTrace(WatchService service, String name) {
+        try {
+            for (;;) {
+                WatchKey key     = service.take();
+                boolean  changed = false;
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context().toString())) {
+                        changed = true;
+                    }
+                }
+                if (!key.reset()) {
+                    /*
+                     * The directory is no longer accessible. The poll is only started if the watch has not
+                     * been stopped or replaced in the meantime.
+                     */
+                    service.close();
+                    lock.lock();
+                    try {
+                        if (traceWatch == service) {
+                            traceWatch = null;
+                            startTracePoll();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    return;
+                }
+                if (changed) {
+                    java.lang.Thread.sleep(traceSettleTime);
+
+                    while ((key = service.poll()) != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                    updateTrace(true);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException | IOException e) {
+        }
+    }
+    /*
+     * Stops the trace control watcher or poll. Closing the WatchService ends the watcher thread. The last
+     * update is cleared, so the file is read in full when the watch is next started. Must be called holding
+     * lock.
+     */
+    private static void stopTraceWatch() {
+        if (traceWatch != null) {
+            try {
+                traceWatch.close();
+            } catch (IOException e) {
+                System.err.println("Closing trace control watch exception " + e.toString());
+            }
+            traceWatch = null;
+        }
+        if (tracePoll != null) {
+            tracePoll.cancel(false);
+            tracePoll = null;
+        }
+        watchStarted = false;
+        lastUpdate   = null;
+    }
+
+    /*
+     * Registers a shutdown hook that closes the processes. This is done the first time a stream is
+     * configured to write asynchronously or via a mapped file, as these would otherwise lose queued
+     * reports or leave unused file space on exit.
+     */
+    private static void addShutdownHook() {
+        lock.lock();
+        try {
+            if (hookAdded) return;
+
+            Runtime.getRuntime().addShutdownHook(new java.lang.Thread("Reporting shutdown") {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            hookAdded = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    /*
+     * Closes the streams of all the processes, which writes any queued or buffered reports, and unregisters
+     * their TraceControl MBeans.
+     */
     public static void close() {
+        lock.lock();
+        try {
+            for (Process p : processes.values()) {
+                for (Stream s : p.getStreams()) {
+                    s.close();
+                }
+                TraceControl.unregister(p);
+            }
+            processes.clear();
+            stopTraceWatch();
+        } finally {
+            lock.unlock();
+        }
         initialised = false;
         config      = null;
-        processes   = null;
     }
     private int getValue(Configuration config, int def) throws Configuration.ConfigurationError {
         if (!config.isInteger()) {
@@ -277,9 +628,12 @@ public class Process implements Serializable {
     }
 
     private void setStream(Configuration config) throws Configuration.ConfigurationError {
-        String      open        = null;
-        Interceptor interceptor = null;
-        boolean     override    = false;
+        String               open        = null;
+        Interceptor          interceptor = null;
+        boolean              override    = false;
+        boolean              async       = false;
+        int                  queueSize   = 4096;
+        AsyncWriter.Overflow overflow    = AsyncWriter.Overflow.BLOCK;
 
         config.setFirstProperty();
         Stream str;
@@ -303,6 +657,46 @@ public class Process implements Serializable {
                 override = getValue(config, false);
             } else if (config.getPropertyName().equals("ALLOWREENTER")) {
                 str.setAllowReenter(getValue(config, false));
+            } else if (config.getPropertyName().equals("FLUSH")) {
+                OutputFile.FlushPolicy policy = OutputFile.FlushPolicy.parse(config.getPropertyValue());
+                
+                if (policy == null) {
+                    error("Flush must be always, n records, n bytes or n ms. Defaulting to always");
+                } else {
+                    str.setFlushPolicy(policy);
+                }
+            } else if (config.getPropertyName().equals("ACTIVE")) {
+                str.setActive(getValue(config, true));
+            } else if (config.getPropertyName().equals("MAXSIZE")) {
+                long size = OutputFile.parseSize(config.getPropertyValue());
+
+                if (size == -1) {
+                    error("MaxSize must be a number of bytes optionally followed by k, m or g. Defaulting to no limit");
+                } else {
+                    str.setMaxSize(size);
+                }
+            } else if (config.getPropertyName().equals("MAXFILES")) {
+                str.setMaxFiles(getValue(config, 0));
+            } else if (config.getPropertyName().equals("FORMAT")) {
+                if (config.getPropertyValue().equalsIgnoreCase("binary")) {
+                    str.setBinary(true);
+                } else if (config.getPropertyValue().equalsIgnoreCase("text")) {
+                    str.setBinary(false);
+                } else {
+                    error("Format must be text or binary. Defaulting to text");
+                }
+            } else if (config.getPropertyName().equals("MAPPED")) {
+                str.setMapped(getValue(config, false));
+            } else if (config.getPropertyName().equals("ASYNC")) {
+                async = getValue(config, false);
+            } else if (config.getPropertyName().equals("QUEUESIZE")) {
+                queueSize = getValue(config, 4096);
+            } else if (config.getPropertyName().equals("OVERFLOW")) {
+                try {
+                    overflow = AsyncWriter.Overflow.valueOf(config.getPropertyValue().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    error("Overflow must be block, drop or sample. Defaulting to block");
+                }
             } else {
                 error("Property " + config.getPropertyName() + " not recognised");
             }
@@ -311,6 +705,9 @@ public class Process implements Serializable {
         if (interceptor != null) {
             str.setInterceptor(interceptor, open, override);
         }
+        if (async) {
+            str.setAsync(queueSize, overflow);
+        }
     }
 
     private void configure(String key, String name) throws Configuration.ConfigurationError {
@@ -350,8 +747,18 @@ public class Process implements Serializable {
                 maxDuplicates = getValue(config, 100);
             } else if (config.getPropertyName().equals("MAXTRACE")) {
                 maxTrace = getValue(config, 100);
+            } else if (config.getPropertyName().equals("REGISTERTHREADS")) {
+                Thread.setRegistered(getValue(config, true));
+            } else if (config.getPropertyName().equals("INHERITCONTEXT")) {
+                Thread.setInherit(getValue(config, false));
             } else if (config.getPropertyName().equals("MEASURES")) {
                 measurements = getValue(config, true);
+            } else if (config.getPropertyName().equals("NANOTIME")) {
+                nanoTime = getValue(config, false);
+            } else if (config.getPropertyName().equals("CPUTIME")) {
+                cpuTime = getValue(config, false);
+            } else if (config.getPropertyName().equals("ALLOCATED")) {
+                allocated = getValue(config, false);
             } else if (config.getPropertyName().equals("TRACE")) {
                 traceEnabled = getValue(config, true);
             } else {
@@ -386,7 +793,7 @@ public class Process implements Serializable {
             configure("ARGLOBAL", null);
             configure("ARJDEFAULT", null);
             configure("ARIDENTIFIER", identifier);
-            trace.setMask(new Token(defaultTrace));
+            trace = trace.withMask(new Token(defaultTrace));
         } catch (Configuration.ConfigurationError e) {
             System.out.println(e.toString());
         }
@@ -395,6 +802,25 @@ public class Process implements Serializable {
     public boolean getMeasure() {
         return measurements;
     }
+    /**
+     * Returns true if the trace module exit reports give the elapsed time from System.nanoTime to the
+     * microsecond, rather than from the system clock to the millisecond.
+     */
+    public boolean getNanoTime() {
+        return nanoTime;
+    }
+    /**
+     * Returns true if the trace module exit reports include the CPU time used by the thread.
+     */
+    public boolean getCpuTime() {
+        return cpuTime;
+    }
+    /**
+     * Returns true if the trace module exit reports include the bytes allocated by the thread.
+     */
+    public boolean getAllocated() {
+        return allocated;
+    }
 
     public String getErrorEventId() {
         return errorEventId;
@@ -404,7 +830,8 @@ public class Process implements Serializable {
      * contains an entry for Key and Value.
      */
     public boolean setDuplicate(String key, String value) {
-        synchronized (this) {
+        duplicatesLock.lock();
+        try {
             String listValue = duplicates.get(key);
 
             if (listValue != null && value.equals(listValue)) {
@@ -417,6 +844,8 @@ public class Process implements Serializable {
 
             duplicates.put(key, value);
             return false;
+        } finally {
+            duplicatesLock.unlock();
         }
     }
     /*
@@ -424,12 +853,15 @@ public class Process implements Serializable {
      * Note: It is not an error if an entry with Key does not exist.
      */
     public void clearDuplicates(String key) {
-        synchronized (this) {
+        duplicatesLock.lock();
+        try {
             if (key == null) {
                 duplicates.clear();
             } else {
                 duplicates.remove(key);
             }
+        } finally {
+            duplicatesLock.unlock();
         }
     }
     /*
@@ -438,24 +870,80 @@ public class Process implements Serializable {
      * If Mask does not contain a level specifier it remains unchanged.
      * If Mask does not contain flags they are set to default defined at
      * initialisation.
+     * If Mask contains @ preceded by white space the text following it sets
+     * the sampling, see TraceMask.withSampling, otherwise the sampling
+     * remains unchanged. An @ not preceded by white space is a trace flag.
+     *
+     * The updated mask is put in the process entry in masks, which starts as the process trace mask, and
+     * the level in its entry in levels. They are applied by publishTrace.
      */
-    private void setTrace(Token mask, char delimiter) {
+    private void setTrace(HashMap<Process, TraceMask> masks, HashMap<Process, Integer> levels, Token mask, char delimiter) {
+        TraceMask next = masks.containsKey(this) ? masks.get(this) : trace;
+
         switch (delimiter) {
             case '*':
-                trace.updateGroups(mask);
+                next = next.withGroups(mask);
                 break;
             case '$':
-                trace.updateModules(mask);
+                next = next.withModules(mask);
                 break;
             default: {
                 int level = TraceMask.getLevel(mask);
+
                 if (level != -1) {
-                    maxTrace = level;
+                    levels.put(this, level);
+                }
+                next = withFlags(next, mask.remainder());
+            }
+        }
+        masks.put(this, next);
+    }
+    /*
+     * Returns current with the flags updated by flags and, if flags ends with a sampling clause, the sampling
+     * set by it. If there are no flags the default flags are set.
+     */
+    private TraceMask withFlags(TraceMask current, String flags) {
+        int at = TraceMask.getSamplingIndex(flags);
+
+        if (at != -1) {
+            current = current.withSampling(flags.substring(at + 1));
+            flags   = flags.substring(0, at).trim();
+        }
+        return current.withMask(new Token(flags.equals("") ? defaultTrace : flags));
+    }
+    /*
+     * Adds or removes the process from the count of tracing processes if it has changed between having
+     * attached threads with trace enabled and not. The lock ensures the last update sees the latest state
+     * and that the guard is changed in the same order as the count.
+     */
+    private void updateTracing() {
+        tracingLock.lock();
+        try {
+            boolean enabled = attached.get() > 0 && traceEnabled && isTraceEnabled();
+
+            if (enabled != counted) {
+                counted  = enabled;
+                tracing += enabled ? 1 : -1;
+
+                if (tracing == (enabled ? 1 : 0)) {
+                    tracingSite.setTarget(MethodHandles.constant(boolean.class, enabled));
+                    MutableCallSite.syncAll(new MutableCallSite[] {tracingSite});
                 }
-                trace.setMask((mask.remainder().equals("")) ? new Token(defaultTrace) : mask);
             }
+        } finally {
+            tracingLock.unlock();
         }
     }
+    /*
+     * Called by Thread when a thread is attached to or detached from the process. The tracing count is only
+     * updated when the first thread is attached or the last is detached.
+     */
+    void threadAttached() {
+        if (attached.getAndIncrement() == 0) updateTracing();
+    }
+    void threadDetached() {
+        if (attached.decrementAndGet() == 0) updateTracing();
+    }
     public String getIdentifier() {
         return identifier;
     }
@@ -465,6 +953,113 @@ public class Process implements Serializable {
     public int getMaxTraceLevel() {
         return maxTrace;
     }
+    /**
+     * Sets the maximum depth of trace modules. The change takes effect immediately, see applyTraceControl.
+     */
+    public void setMaxTraceLevel(int level) {
+        traceLock.lock();
+        try {
+            publishTrace(trace, level);
+        } finally {
+            traceLock.unlock();
+        }
+    }
+    /*
+     * Replaces the process trace mask and, if level is not null, the trace level. Must be called holding
+     * traceLock.
+     */
+    private void publishTrace(TraceMask mask, Integer level) {
+        HashMap<Process, TraceMask> masks  = new HashMap<Process, TraceMask>();
+        HashMap<Process, Integer>   levels = new HashMap<Process, Integer>();
+
+        masks.put(this, mask);
+
+        if (level != null) levels.put(this, level);
+
+        publishTrace(masks, levels, new Date());
+    }
+    /**
+     * Returns the current trace mask. The mask is not changed once created, so the value returned is not
+     * affected by later trace changes.
+     */
+    public TraceMask getTraceMask() {
+        return trace;
+    }
+    /**
+     * Sets the trace flags, and optionally the level and sampling, from mask in the format used by the trace
+     * control file, e.g. #20#+ABC @1/100, see Trace. The change takes effect immediately, see
+     * applyTraceControl.
+     */
+    public void setTraceMask(String mask) {
+        Token token = new Token(mask.trim());
+
+        traceLock.lock();
+        try {
+            int level = TraceMask.getLevel(token);
+
+            publishTrace(withFlags(trace, token.remainder()), level == -1 ? null : level);
+        } finally {
+            traceLock.unlock();
+        }
+    }
+    /**
+     * Updates the disabled groups from list in the format used by the trace control file, see Trace. The
+     * change takes effect immediately, see applyTraceControl.
+     */
+    public void setTraceGroups(String list) {
+        traceLock.lock();
+        try {
+            publishTrace(trace.withGroups(new Token(list.trim())), null);
+        } finally {
+            traceLock.unlock();
+        }
+    }
+    /**
+     * Updates the disabled modules from list in the format used by the trace control file, see Trace. The
+     * change takes effect immediately, see applyTraceControl.
+     */
+    public void setTraceModules(String list) {
+        traceLock.lock();
+        try {
+            publishTrace(trace.withModules(new Token(list.trim())), null);
+        } finally {
+            traceLock.unlock();
+        }
+    }
+    /**
+     * Sets the sampling, leaving the trace flags and level unchanged, see TraceMask.withSampling. The
+     * change takes effect immediately, see applyTraceControl.
+     */
+    public void setTraceSampling(String spec) {
+        traceLock.lock();
+        try {
+            publishTrace(trace.withSampling(spec), null);
+        } finally {
+            traceLock.unlock();
+        }
+    }
+    public int getMaxDuplicates() {
+        return maxDuplicates;
+    }
+    /**
+     * Sets the number of duplicate keys held before the duplicates are cleared.
+     */
+    public void setMaxDuplicates(int maxDuplicates) {
+        duplicatesLock.lock();
+        try {
+            this.maxDuplicates = maxDuplicates;
+        } finally {
+            duplicatesLock.unlock();
+        }
+    }
+    public int getDuplicateCount() {
+        duplicatesLock.lock();
+        try {
+            return duplicates.size();
+        } finally {
+            duplicatesLock.unlock();
+        }
+    }
     /**
      * Returns true if trace is unconditionally turned off, i.e. cannot be
      * controlled at run time.
@@ -480,21 +1075,31 @@ public class Process implements Serializable {
         return !noTrace && trace.isEnabled();
     }
     /*
-     * The methods that call updateTrace should wait until the traceLock clears. However, all this means is
-     * that the latest settings of the trace attributes may not be picked up until the next refresh interval.
+     * The trace settings are updated by the trace control watcher, or the poll if the file cannot be watched,
+     * and by the API, so the checks below do not read the trace control file.
      */
     public boolean isGroupEnabled(String name) {
-        updateTrace(false);
         return trace.isGroupEnabled(name);
     }
     public boolean isModuleEnabled(String name) {
-        updateTrace(false);
         return trace.isModuleEnabled(name);
     }
     public boolean isTraceEnabled(char type) {
-        updateTrace(false);
         return traceEnabled && trace.isEnabled(type);
     }
+    /*
+     * Returns true if the call tree of module, which a thread is entering, is to be traced, see
+     * TraceMask.withSampling.
+     */
+    boolean isTraceAdmitted(String module) {
+        return trace.admit(module);
+    }
+    /*
+     * Counts a trace record written by the call tree of module against the trace rate limits.
+     */
+    void traceRecorded(String module) {
+        trace.recorded(module);
+    }
     public Collection<Stream> getStreams() {
         return streams.values();
     }
@@ -526,18 +1131,28 @@ public class Process implements Serializable {
         public int getEntryCount() {
             return entryCount;
         }
-        private String      name               = "";
-        private String      fileTemplate        = "";
-        private String      reportPrefix        = "";
-        private Interceptor interceptor         = null;
-        private boolean     interceptorOverride = false;
-        private boolean     error               = false;
-        private Object      control             = null;
-        private OutputFile  file                = null;
-        private Interval    refresh             = null;
-        private String      fileName            = "";
-        private int         entryCount          = 0;
-        private boolean     allowReenter        = false;
+        private String                 name                = "";
+        private Template               fileTemplate        = Template.compile("");
+        private Template               reportPrefix        = Template.compile("");
+        private Interceptor            interceptor         = null;
+        private boolean                interceptorOverride = false;
+        private boolean                error               = false;
+        private Object                 control             = null;
+        private OutputFile             file                = null;
+        private String                 fileName            = "";
+        private volatile String        templateName        = null;
+        private final ReentrantLock    streamLock          = new ReentrantLock();
+        private volatile boolean       renderDue           = true;
+        private final Runnable         renderTask          = () -> renderDue = true;
+        private int                    entryCount          = 0;
+        private boolean                allowReenter        = false;
+        private volatile AsyncWriter   writer              = null;
+        private boolean                mapped              = false;
+        private OutputFile.FlushPolicy flushPolicy         = OutputFile.FlushPolicy.ALWAYS;
+        private volatile boolean       active              = true;
+        private long                   maxSize             = 0;
+        private boolean                binary              = false;
+        private int                    maxFiles            = 0;
 
         public class Summary {            
             public String getName() {
@@ -553,17 +1168,61 @@ public class Process implements Serializable {
                 return file == null? null : file.getFilename();
             }
             public String getFileTemplate() {
-                return fileTemplate;
+                return fileTemplate.getTemplate();
             }
             public String getReportPrefix() {
-                return reportPrefix;
+                return reportPrefix.getTemplate();
+            }
+            public boolean getActive() {
+                return active;
+            }
+            public long getMaxSize() {
+                return maxSize;
+            }
+            public int getMaxFiles() {
+                return maxFiles;
+            }
+            public String getFormat() {
+                return binary ? "binary" : "text";
+            }
+            public String getFlushPolicy() {
+                return flushPolicy.toString();
+            }
+            public boolean getMapped() {
+                return mapped;
+            }
+            public boolean getAsync() {
+                return writer != null;
+            }
+            public String getOverflow() {
+                AsyncWriter aWriter = writer;
+
+                return aWriter == null? null : aWriter.getOverflow().toString();
+            }
+            public int getQueueSize() {
+                AsyncWriter aWriter = writer;
+
+                return aWriter == null? 0 : aWriter.getQueueSize();
+            }
+            /**
+             * @return the number of reports waiting to be written by the background writer
+             */
+            public int getQueueDepth() {
+                AsyncWriter aWriter = writer;
+
+                return aWriter == null? 0 : aWriter.getDepth();
+            }
+            /**
+             * @return the number of reports discarded because the queue was full
+             */
+            public long getDropped() {
+                AsyncWriter aWriter = writer;
+
+                return aWriter == null? 0 : aWriter.getDropped();
             }
         }
         Stream(String name) {
-            this.name    = name;
-            fileTemplate = "";
-            reportPrefix = "";
-            refresh      = new Interval(1000 * fileRefreshRate, true);
+            this.name = name;
         }
 
         public void setInterceptor(Interceptor interceptor, String openInfo, boolean override) {
@@ -581,21 +1240,83 @@ public class Process implements Serializable {
             return name;
         }
         public void setFileTemplate(String fileTemplate) {
-            this.fileTemplate = fileTemplate;
+            this.fileTemplate = Template.compile(fileTemplate);
+            renderDue         = true;
         }
         public String getFileTemplate() {
-            return fileTemplate;
+            return fileTemplate.getTemplate();
         }
         public void setReportPrefix(String reportPrefix) {
-            this.reportPrefix = reportPrefix;
+            this.reportPrefix = Template.compile(reportPrefix);
         }
         public void setAllowReenter(boolean yes) {
             allowReenter = yes;
         }
+        /**
+         * An inactive stream discards its reports. Callers can test isActive to avoid building reports
+         * that would be discarded.
+         */
+        public void setActive(boolean yes) {
+            active = yes;
+        }
+        public boolean isActive() {
+            return active;
+        }
+        /**
+         * Files opened after this call roll to a numbered segment when their size reaches maxSize bytes.
+         * A maxSize of 0 disables rolling.
+         */
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+        /**
+         * Only the last maxFiles rolled segments are kept. A maxFiles of 0 keeps all the segments.
+         */
+        public void setMaxFiles(int maxFiles) {
+            this.maxFiles = maxFiles;
+        }
+        /**
+         * If yes is true reports are written in the binary format described by BinaryEncoder rather than as
+         * text lines with the report prefix. Binary files are decoded by BinaryDecoder.
+         */
+        public void setBinary(boolean yes) {
+            binary = yes;
+        }
+        /*
+         * If yes is true files opened after this call are written via a memory mapped FileChannel.
+         */
+        public void setMapped(boolean yes) {
+            mapped = yes;
+
+            if (yes) addShutdownHook();
+        }
+        public void setFlushPolicy(OutputFile.FlushPolicy policy) {
+            flushPolicy = policy;
+        }
+        public OutputFile.FlushPolicy getFlushPolicy() {
+            return flushPolicy;
+        }
+        /*
+         * Writes the stream reports on a background thread via a queue holding up to queueSize reports.
+         * Overflow determines the action taken when a report is output and the queue is full.
+         */
+        void setAsync(int queueSize, AsyncWriter.Overflow overflow) {
+            AsyncWriter previous = writer;
+
+            writer = new AsyncWriter(this, identifier + "." + name, queueSize, overflow);
+
+            if (previous != null) previous.close();
+            addShutdownHook();
+        }
         public String getReportPrefix() {
-            return reportPrefix;
+            return reportPrefix.getTemplate();
+        }
+        private void output(OutputFile file, CharSequence message, Exception exception, boolean stackTrace) {
+            if (exception != null && !stackTrace) message = message + " exception " + exception.getClass().getSimpleName() + "-" + exception.getMessage();
+
+            file.println(message, exception != null && stackTrace ? exception : null);
         }
-        private void output(PrintWriter stream, String message, Exception exception, boolean stackTrace) {
+        private void output(PrintWriter stream, CharSequence message, Exception exception, boolean stackTrace) {
             if (exception != null && !stackTrace) message += " exception " + exception.getClass().getSimpleName() + "-" + exception.getMessage();
             
             if (stream == null)
@@ -606,77 +1327,171 @@ public class Process implements Serializable {
             if (exception != null && stackTrace)
                 if (stream == null) exception.printStackTrace(); else exception.printStackTrace(stream);
         }
-        private String resolveLocalParameters(String ref, String module, String text, Parameters params) {
-            Parameters lParams = new Parameters();
-            
-            if (ref    != null) lParams.setValue("REF", ref);
-            if (module != null) lParams.setValue("MOD", module);
+        public String reportText(String ref, String module, String text, Parameters params) {
+            ReportBuffer buffer  = getBuffer();
+            Parameters   lParams = buffer.setLocals(ref, module);
             
-            return params.substitute(text, lParams);
-        }
-        public String reportText(String ref, String module, String text, Parameters params) {            
-            return resolveLocalParameters(ref, module, reportPrefix, params) + resolveLocalParameters(ref, module, text, params);
+            try {
+                reportPrefix.render(buffer.text, params, lParams);
+                Template.compile(text).render(buffer.text, params, lParams);
+                return buffer.text.toString();
+            } finally {
+                buffer.release();
+            }
         }
-        public void output(String ref, String module, String text, Parameters params, String duplicateKey, Exception exception, boolean stackTrace) {
-            boolean    interceptorActioned = false;
-            String     formattedPrefix;
-            String     formattedText;
-            boolean    toFile              = (interceptor == null || interceptorOverride);
-            String     fName               = getFileName();
-            boolean    duplicate           = false;
-            boolean    check               = refresh.lapsed();
-            
-            if (file == null || check) {
-                fName = params.substitute(fileTemplate);
+        /*
+         * Renders the file template and schedules the next render for when the template's time parameters
+         * can next change its output. If that is less than a second away, e.g. the template contains the
+         * milliseconds, no render is scheduled and the template is rendered for every report.
+         */
+        private String renderFileName(Parameters params, long time) {
+            streamLock.lock();
+            try {
+                if (renderDue || templateName == null) {
+                    StringBuilder name = new StringBuilder();
+                    long          next = fileTemplate.nextChange(time);
+
+                    fileTemplate.render(name, params, null, time);
+                    templateName = name.toString();
+
+                    if (next - time >= 1000) {
+                        renderDue = false;
+
+                        if (next != Long.MAX_VALUE) Scheduler.schedule(renderTask, next - System.currentTimeMillis());
+                    }
+                }
+                return templateName;
+            } finally {
+                streamLock.unlock();
             }
-            if (!fName.equals(fileName) || (error && check)) {
-                try {
-                    if (file != null) {
-                        file.close();
+        }
+        /*
+         * Opens the file fName if it is not the current file, or retry is true and the last open failed, and
+         * writes the message to it.
+         *
+         * For asynchronous streams this is only called from the background writer thread, which sets batch
+         * to true. In this case a flush policy of always is applied by endBatch rather than for each report.
+         *
+         * Time, id, threadIndex, module and ref are the report fields written by binary streams. For text
+         * streams they are already rendered in message by the report prefix.
+         */
+        void write(String fName, boolean retry, long time, String id, String threadIndex, String module, String ref, CharSequence message, Exception exception, boolean stackTrace, boolean batch) {
+            streamLock.lock();
+            try {
+                if (!fName.equals(fileName) || (error && retry)) {
+                    try {
+                        if (file != null) {
+                            file.close();
+                        }
+                        file  = OutputFile.open(reportingRoot, fName, true, mapped);
+                        error = false;
+                    
+                        if (maxSize > 0) file.setRolling(maxSize, maxFiles);
+                    } catch (IOException e) {
+                        if (!error) {
+                            System.out.println("Opening file "
+                                    + fName + " exception "
+                                    + e.toString());
+                        }
+                        file  = null;
+                        error = true;
+                        /*
+                         * The open is retried by the next report after the file name is rendered again.
+                         */
+                        Scheduler.schedule(renderTask, 1000L * fileRetryRate);
                     }
-                    file  = OutputFile.open(reportingRoot, fName, true);
-                    error = false;
-                } catch (IOException e) {
-                    if (!error) {
-                        System.out.println("Opening file "
-                                + fName + " exception "
-                                + e.toString());
+                }
+                fileName = fName;
+            
+                if (file != null) {
+                    if (binary) {
+                        file.writeRecord(reportPrefix.getTemplate(), time, id, threadIndex, module, ref, message, exception, stackTrace);
+                    } else {
+                        output(file, message, exception, stackTrace);
                     }
-                    file  = null;
-                    error = true;
+                    file.written(batch && flushPolicy.isAlways() ? null : flushPolicy);
+                } else if (this.name.equals("ERROR")) {
+                    output((PrintWriter) null, message, exception, stackTrace);
+                } else {
+                    System.out.println(message);
                 }
+            } finally {
+                streamLock.unlock();
             }
-            fileName        = fName;
-            formattedPrefix = resolveLocalParameters(ref, module, reportPrefix, params);
-            formattedText   = resolveLocalParameters(ref, module, text, params);
-            String message  = formattedPrefix + text;
-
-            if (duplicateKey != null) {
-                duplicate = setDuplicate(name + duplicateKey, formattedText);
+        }
+        /*
+         * Called by the background writer when it has written all the queued reports.
+         */
+        void endBatch() {
+            streamLock.lock();
+            try {
+                if (file != null && flushPolicy.isAlways()) file.flush();
+            } finally {
+                streamLock.unlock();
+            }
+        }
+        /*
+         * Writes any reports held in the file buffer.
+         */
+        public void flush() {
+            streamLock.lock();
+            try {
+                if (file != null) file.flush();
+            } finally {
+                streamLock.unlock();
             }
+        }
+        public void output(String ref, String module, String text, Parameters params, String duplicateKey, Exception exception, boolean stackTrace) {
+            if (!active) return;
 
-            if (interceptor != null && (allowReenter || getEntryCount() == 0)) {
-                try {
-                    entryCount          += 1;
-                    interceptorActioned = interceptor.output(control, getEntryCount() != 1, text, duplicateKey);
-                } catch (InterceptorException e) {
-                    System.err.println("On stream " + name + " Interceptor error " + e.toString());
-                    toFile = true;
-                } finally {
-                    entryCount -= 1;
+            boolean       interceptorActioned = false;
+            ReportBuffer  buffer              = getBuffer();
+            Parameters    lParams             = buffer.setLocals(ref, module);
+            boolean       toFile              = (interceptor == null || interceptorOverride);
+            boolean       duplicate           = false;
+            boolean       check               = renderDue;
+            AsyncWriter   aWriter             = writer;
+            long          time                = System.currentTimeMillis();
+            String        fName               = check || templateName == null ? renderFileName(params, time) : templateName;
+            
+            try {
+                if (!binary) reportPrefix.render(buffer.text, params, lParams, time);
+
+                buffer.text.append(text);
+
+                if (duplicateKey != null) {
+                    duplicate = setDuplicate(name + duplicateKey, params.substitute(text, lParams));
                 }
-            }
-            if ((toFile && !duplicate) || !interceptorActioned) {
-                if (file != null) {
-                    PrintWriter ps = file.getOut();
-                    
-                    output(ps, message, exception, stackTrace);                    
-                    ps.flush();
-                } else if (this.name.equals("ERROR")) {                    
-                    output(null, message, exception, stackTrace);
-                } else {
-                    System.out.println(message);
+
+                if (interceptor != null && (allowReenter || getEntryCount() == 0)) {
+                    try {
+                        entryCount          += 1;
+                        interceptorActioned = interceptor.output(control, getEntryCount() != 1, text, duplicateKey);
+                    } catch (InterceptorException e) {
+                        System.err.println("On stream " + name + " Interceptor error " + e.toString());
+                        toFile = true;
+                    } finally {
+                        entryCount -= 1;
+                    }
                 }
+                if ((toFile && !duplicate) || !interceptorActioned) {
+                    String id          = null;
+                    String threadIndex = null;
+
+                    if (binary) {
+                        id          = params.getValue("ID");
+                        threadIndex = params.getValue("THREADINDEX");
+                        module      = module == null ? params.getValue("MOD") : module;
+                        ref         = ref    == null ? params.getValue("REF") : ref;
+                    }
+                    if (aWriter != null) {
+                        aWriter.output(fName, check, time, id, threadIndex, module, ref, buffer.text, exception, stackTrace);
+                    } else {
+                        write(fName, check, time, id, threadIndex, module, ref, buffer.text, exception, stackTrace, false);
+                    }
+                }
+            } finally {
+                buffer.release();
             }
         }
         public void output(String ref, String module, String text, Parameters params, String duplicateKey, Exception exception) {
@@ -685,11 +1500,29 @@ public class Process implements Serializable {
         public void output(String ref, String module, String text, Parameters params, String duplicateKey) {
             output(ref, module, text, params, duplicateKey, null);
         }
+        /*
+         * The writer is cleared before it is closed, so reports output while it is being closed are written
+         * directly. It is not closed holding streamLock, as the writer thread takes it to write the queued
+         * reports.
+         */
         public void close() {
-            if (file == null) {
-                return;
+            AsyncWriter aWriter = writer;
+
+            if (aWriter != null) {
+                writer = null;
+                aWriter.close();
+            }
+            streamLock.lock();
+            try {
+                if (file == null) {
+                    return;
+                }
+                file.close();
+                file     = null;
+                fileName = "";
+            } finally {
+                streamLock.unlock();
             }
-            file.close();
         }
         public Summary getSummary() {
             return new Summary();
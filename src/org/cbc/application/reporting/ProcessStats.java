@@ -22,7 +22,13 @@ import java.net.UnknownHostException;
  */
 public class ProcessStats implements Serializable {
 
-    private String getHostName() {
+    private static final String host = getHostName();
+
+    /*
+     * The host name is looked up once, as a ProcessStats is created each time a process is attached to a
+     * thread and the lookup can be slow.
+     */
+    private static String getHostName() {
         try {
             return InetAddress.getLocalHost().getHostName();
         } catch (UnknownHostException e) {
@@ -33,5 +39,5 @@ public class ProcessStats implements Serializable {
     final public transient        long    time        = System.currentTimeMillis();
     final public transient        long    freeMemory  = runtime.freeMemory();
     final public transient        long    totalMemory = runtime.totalMemory();
-    final public transient        String  hostName    = getHostName();
+    final public transient        String  hostName    = host;
 }
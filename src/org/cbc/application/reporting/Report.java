@@ -3,6 +3,9 @@ package org.cbc.application.reporting;
 import org.cbc.application.BaseException;
 import org.cbc.application.Parameters;
 import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 /**
  * The Reports class provides static methods for writing reports. The static
@@ -31,6 +34,27 @@ public class Report implements Serializable {
     public static void comment(String ref, String text) {
         Thread.report("COMMENT", ref, false, null, text);
     }    
+    /**
+     * Generates a report to the Comment stream. Text is only called if the
+     * stream is active.
+     *
+     * @param Ref Report reference.
+     * @param Text Supplies the report text.
+     */
+    public static void comment(String ref, Supplier<String> text) {
+        Thread.report("COMMENT", ref, false, null, text);
+    }
+    /**
+     * Generates a report to the Comment stream with text produced by
+     * String.format. The text is only formatted if the stream is active.
+     *
+     * @param Ref Report reference.
+     * @param Format The format string.
+     * @param Args The format arguments.
+     */
+    public static void commentFormat(String ref, String format, Object... args) {
+        comment(ref, () -> String.format(format, args));
+    }
     /**
      * Returns the report that be written to the comment stream by the above.
      *
@@ -132,6 +156,16 @@ public class Report implements Serializable {
     public static void audit(String ref, String text) {
         Thread.report("AUDIT", ref, false, null, text);
     }
+    /**
+     * Generates a report to the Audit stream. Text is only called if the
+     * stream is active.
+     *
+     * @param Ref Report reference.
+     * @param Text Supplies the report text.
+     */
+    public static void audit(String ref, Supplier<String> text) {
+        Thread.report("AUDIT", ref, false, null, text);
+    }
     /**
      * Generates a report to the event stream.
      *
@@ -141,6 +175,78 @@ public class Report implements Serializable {
     public static void event(String ref, String text) {
         Thread.report("EVENT", ref, false, null, text);
     }
+    /**
+     * Generates a report to the event stream. Text is only called if the
+     * stream is active.
+     *
+     * @param Ref Report reference.
+     * @param Text Supplies the report text.
+     */
+    public static void event(String ref, Supplier<String> text) {
+        Thread.report("EVENT", ref, false, null, text);
+    }
+    /**
+     * Generates a report to the event stream with text produced by
+     * String.format. The text is only formatted if the stream is active.
+     *
+     * @param Ref Report reference.
+     * @param Format The format string.
+     * @param Args The format arguments.
+     */
+    public static void eventFormat(String ref, String format, Object... args) {
+        event(ref, () -> String.format(format, args));
+    }
+    /**
+     * Returns true if reports to Stream are output. This can be used to avoid
+     * building reports that would be discarded.
+     *
+     * @param Stream The stream name, e.g. EVENT.
+     * @return True if the stream is active.
+     */
+    public static boolean isActive(String stream) {
+        return Thread.isStreamActive(stream.toUpperCase());
+    }
+    /**
+     * Returns a task that runs Task with the reporting context of the current
+     * thread, i.e. its process and a copy of its parameters. This is used to
+     * keep the report ID and parameters when work is passed to another thread,
+     * e.g. a thread pool. The context is installed on the thread running the
+     * task for the duration of the task only.
+     *
+     * Task is returned unchanged if the current thread has no attached process.
+     *
+     * @param Task The task to run.
+     * @return The wrapped task.
+     */
+    public static Runnable wrap(Runnable task) {
+        Thread.Snapshot context = Thread.capture();
+
+        return context == null ? task : () -> context.run(task);
+    }
+    /**
+     * As above for a Callable.
+     *
+     * @param Task The task to run.
+     * @return The wrapped task.
+     */
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        Thread.Snapshot context = Thread.capture();
+
+        return context == null ? task : () -> context.call(task);
+    }
+    /**
+     * Returns an ExecutorService that passes the tasks submitted to Executor
+     * wrapped as above, so each task runs with the reporting context of the
+     * thread that submitted it. It can be passed to the CompletableFuture
+     * async methods so the stages run with the context of the thread that
+     * created them.
+     *
+     * @param Executor The executor that runs the tasks.
+     * @return The wrapping executor.
+     */
+    public static ExecutorService wrap(ExecutorService executor) {
+        return new ContextExecutor(executor);
+    }
     /**
      * Generates a report to the event stream. The report will not be generated
      * if the previous report text held for DuplicateKey matches Text. The
@@ -0,0 +1,168 @@
+package org.cbc.application.reporting;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The base for the writers used by OutputFile. Characters are encoded with the default charset directly
+ * into a byte buffer supplied by the implementation, which is called to make space when the buffer is full.
+ * <P>
+ * Reports are written by writeLine, which copies the report into a reusable character buffer, so once the
+ * buffers have grown to the size of the largest report writing a report does not allocate any objects.
+ */
+abstract class ReportWriter extends Writer {
+    private static final String         lineSeparator = System.lineSeparator();
+    private final        CharsetEncoder encoder       = Charset.defaultCharset().newEncoder()
+                                                                .onMalformedInput(CodingErrorAction.REPLACE)
+                                                                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final        CharBuffer     separator     = CharBuffer.wrap(lineSeparator);
+    private              char[]         chars         = new char[256];
+    private              CharBuffer     charBuffer    = CharBuffer.wrap(chars);
+    private              boolean        closed        = false;
+    protected final      ReentrantLock  writeLock     = new ReentrantLock();
+
+    /*
+     * Returns the buffer into which characters are encoded.
+     */
+    protected abstract ByteBuffer getBuffer();
+    /*
+     * Called when the buffer returned by getBuffer is full. On return getBuffer must return a buffer with
+     * space remaining.
+     */
+    protected abstract void overflow() throws IOException;
+    /*
+     * Closes the underlying file. Called once holding writeLock.
+     */
+    protected abstract void closeFile() throws IOException;
+    /**
+     * @return the number of bytes in the file, including those written but not yet flushed.
+     */
+    abstract long size();
+    /*
+     * Called by OutputFile when a whole report, including any stack trace, has been written. Writers that
+     * write to the file in blocks use it to only write whole reports.
+     */
+    void endRecord() {
+    }
+
+    protected void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+    protected boolean isClosed() {
+        return closed;
+    }
+    private void encode(CharBuffer input, boolean endOfInput) throws IOException {
+        for (;;) {
+            CoderResult result = encoder.encode(input, getBuffer(), endOfInput);
+
+            if (!result.isOverflow()) break;
+
+            overflow();
+        }
+        if (endOfInput) {
+            while (encoder.flush(getBuffer()).isOverflow()) {
+                overflow();
+            }
+            encoder.reset();
+        }
+    }
+    /*
+     * Copies text into the character buffer, growing it if necessary, and returns the buffer ready to be
+     * encoded.
+     */
+    private CharBuffer load(CharSequence text) {
+        int length = text.length();
+
+        if (length > chars.length) {
+            chars      = new char[Math.max(length, 2 * chars.length)];
+            charBuffer = CharBuffer.wrap(chars);
+        }
+        if (text instanceof String) {
+            ((String) text).getChars(0, length, chars, 0);
+        } else if (text instanceof StringBuilder) {
+            ((StringBuilder) text).getChars(0, length, chars, 0);
+        } else {
+            for (int i = 0; i < length; i++) chars[i] = text.charAt(i);
+        }
+        charBuffer.clear();
+        charBuffer.limit(length);
+        return charBuffer;
+    }
+    /*
+     * Writes text followed by a line separator.
+     */
+    void writeLine(CharSequence text) throws IOException {
+        writeLock.lock();
+        try {
+            ensureOpen();
+            encode(load(text), false);
+            separator.rewind();
+            encode(separator, true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    /*
+     * Writes the bytes remaining in data, which are written as is, i.e. they are not encoded.
+     */
+    void writeBytes(ByteBuffer data) throws IOException {
+        writeLock.lock();
+        try {
+            ensureOpen();
+
+            while (data.hasRemaining()) {
+                ByteBuffer buffer = getBuffer();
+                int        limit  = data.limit();
+
+                if (!buffer.hasRemaining()) {
+                    overflow();
+                    continue;
+                }
+                data.limit(data.position() + Math.min(buffer.remaining(), data.remaining()));
+                buffer.put(data);
+                data.limit(limit);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            ensureOpen();
+            encode(CharBuffer.wrap(cbuf, off, len), true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            ensureOpen();
+            encode(CharBuffer.wrap(str, off, off + len), true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) return;
+
+            closed = true;
+            closeFile();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.cbc.application.reporting;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the reporting background tasks, e.g. timed file flushes, on a single shared daemon thread. The
+ * tasks must be short as they delay all the other scheduled tasks.
+ * <P>
+ * Long running tasks, e.g. compressing rolled files, are run on a separate low priority thread.
+ */
+class Scheduler {
+    /*
+     * The executors are created when their holder class is first used, which the class loader does once
+     * without the callers taking a lock.
+     */
+    private static class Scheduled {
+        static final ScheduledExecutorService executor = createScheduled();
+    }
+    private static class Background {
+        static final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory("Reporting background", java.lang.Thread.MIN_PRIORITY));
+    }
+    /*
+     * Returns a factory creating daemon threads called name with the given priority.
+     */
+    static ThreadFactory threadFactory(final String name, final int priority) {
+        return new ThreadFactory() {
+            @Override
+            public java.lang.Thread newThread(Runnable task) {
+                java.lang.Thread thread = new java.lang.Thread(task, name);
+
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        };
+    }
+    private static ScheduledExecutorService createScheduled() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory("Reporting scheduler", java.lang.Thread.NORM_PRIORITY));
+
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+    private static ScheduledExecutorService getExecutor() {
+        return Scheduled.executor;
+    }
+    static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return getExecutor().schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+    static ScheduledFuture<?> scheduleRepeated(Runnable task, long delay, long period) {
+        return getExecutor().scheduleWithFixedDelay(task, delay, period, TimeUnit.MILLISECONDS);
+    }
+    /*
+     * Runs task on the shared low priority background thread. Tasks are run in the order submitted.
+     */
+    static void runInBackground(Runnable task) {
+        Background.executor.execute(task);
+    }
+}
@@ -3,13 +3,19 @@ package org.cbc.application.reporting;
 import org.cbc.application.BaseException;
 import org.cbc.application.Parameters;
 import java.io.Serializable;
-import java.text.DecimalFormat;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * @version <b>v1.0, 11/Jun/01, C.B. Close:</b> Initial version.
@@ -21,77 +27,185 @@ import java.util.Set;
  * trace modules.
  */
 public class Thread implements Serializable {
-    private static transient       Thread                            lastThread      = null;
-    private static transient       HashMap<java.lang.Thread, Thread> threads         = new HashMap<java.lang.Thread, Thread>();
-    private static transient       Set<String>                       reserved        = Collections.synchronizedSet(new HashSet<String>());
-    private static transient       DecimalFormat                     fmt             = new DecimalFormat("0.000");
-    private static transient       DecimalFormat                     twodigits       = new DecimalFormat("00");
-    private static transient       boolean                           noTrace         = false;
-    private static transient       Date                              traceUpdated    = null;
-    private static transient final Object                            lock            = new Object();
-    private transient              java.lang.Thread                  thread;
-    private transient              Process                           process         = null;
-    private transient              ArrayList<Module>                 modules         = new ArrayList<Module>();
-    private transient              Parameters                        parameters      = null;
-    private transient              ProcessStats                      initialStats    = null;
-    private transient              int                               index           = 0;;
-    private transient              boolean                           disabledByGroup = false;
+    private static transient final ThreadLocal<Thread>                         current         = new Context();
+    private static final           int                                         expungeRate     = 60;
+    private static transient final ConcurrentHashMap<Key, Thread>              threads         = new ConcurrentHashMap<Key, Thread>();
+    private static transient final ConcurrentHashMap<Key, Thread>              unregistered    = new ConcurrentHashMap<Key, Thread>();
+    private static transient final ReferenceQueue<java.lang.Thread>            released        = new ReferenceQueue<java.lang.Thread>();
+    private static transient final AtomicBoolean                               expungeStarted  = new AtomicBoolean(false);
+    private static transient final AtomicInteger                               lastIndex       = new AtomicInteger(0);
+    private static transient final Set<String>                                 reserved        = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("ID", "PID", "MOD", "REF", "ERRORREF", "ERRORFILE", "ERRORLINE", "THREADINDEX")));
+    private static transient       volatile boolean                            registered      = true;
+    private static transient       volatile boolean                            inherit         = false;
+    private transient              Key                                         key             = null;
+    private transient              Process                                     process         = null;
+    private transient              Process                                     counted         = null;
+    private transient              Module[]                                    modules         = new Module[16];
+    private transient              int                                         depth           = 0;
+    private transient              Parameters                                  parameters      = null;
+    private transient              ProcessStats                                initialStats    = null;
+    private transient              int                                         index           = 0;;
+    private transient              boolean                                     disabledByGroup = false;
 
+    /*
+     * Holds the Thread for the current java thread. If inherit is true a child thread inherits the context
+     * of the thread that started it.
+     */
+    private static class Context extends InheritableThreadLocal<Thread> {
+        @Override
+        protected Thread childValue(Thread parent) {
+            return inherit && parent != null && parent.process != null ? new Thread(parent) : null;
+        }
+    }
+    /*
+     * The registry key for a java thread. It refers to the thread weakly, so neither the registry nor the
+     * Thread keep the java thread alive, and is queued on released once the java thread has been collected.
+     * Keys use identity equality, so an entry can only be removed with the Thread's own key.
+     */
+    private static class Key extends WeakReference<java.lang.Thread> {
+        Key(java.lang.Thread thread) {
+            super(thread, released);
+        }
+    }
     private Thread(java.lang.Thread thread, int index) {
-        this.thread = thread;
-        this.index  = index;
+        this.key   = new Key(thread);
+        this.index = index;
+    }
+    /*
+     * Returns true if the java thread for this Thread is still running.
+     */
+    private boolean isAlive() {
+        java.lang.Thread thread = key == null ? null : key.get();
+
+        return thread != null && thread.isAlive();
+    }
+    /*
+     * Creates the context inherited by a child of the thread for parent. It is attached to the parent's
+     * process with a copy of the parent's parameters and is completed by loadThread when the child first
+     * reports.
+     */
+    private Thread(Thread parent) {
+        process    = parent.process;
+        parameters = parent.parameters.snapshot();
+    }
+    /**
+     * If yes is true, the default, the context for each thread is held in a registry, used by
+     * getThreadStatistics, until the thread is detached or removeUnusedThreads is called after it ends.
+     * <P>
+     * If yes is false contexts created after the call are not held in the registry, so they are released
+     * once the thread ends and has been collected without needing detach, and are then removed from the
+     * attached count of their process. This is intended for large numbers of short lived threads. The
+     * unregistered threads are not included in the thread statistics.
+     */
+    public static void setRegistered(boolean yes) {
+        registered = yes;
+    }
+    /**
+     * If yes is true threads started by a thread with an attached process inherit the process and a copy of
+     * the parameters, rather than being attached to ANON when they first report.
+     */
+    public static void setInherit(boolean yes) {
+        inherit = yes;
     }
     /*
-     * NoTrace is used to minimize the locking caused by trace. It is set to true if none of the thread
-     * processes have trace enabled. In this case it is not necessary to find the thread for the current
-     * java thread.
+     * Returns true if none of the processes with attached threads have trace enabled. In this case it is not
+     * necessary to find the thread for the current java thread.
      * 
-     * If force is true then a change to threads has occured and noTrace is set up. Otherwise, it is is updated
-     * if it Process has updated trace since the last updated by Thread.
+     * The processes maintain the count of those tracing as threads are attached and detached, so attach and
+     * detach do not visit the other threads, and changes to the trace control file are picked up by a
+     * scheduled task. So this is a guard that the JIT folds to a constant, see Process.isTracing.
      */
-    private static void updateNoTrace(boolean force) {
-        Date    newUpdate  = Process.getLastUpdate();
-        boolean newNoTrace = noTrace;
-                
-        if (force || (newUpdate != null && (traceUpdated == null || traceUpdated.compareTo(newUpdate) < 0))) {
-            synchronized (lock) {
-                newNoTrace = true;
-                
-                for (Thread t : threads.values()) {
-                    if (t.thread.isAlive() && t.process != null && t.process.isTraceEnabled()) {
-                        newNoTrace = false;
-                        break;
-                    }
-                }
-            }
+    private static boolean noTrace() {
+        return !Process.isTracing();
+    }
+    /*
+     * Sets the process and moves the thread from the attached count of the previous process to that of the
+     * new one.
+     */
+    private void setProcess(Process process) {
+        this.process = process;
+
+        if (counted != process) {
+            if (counted != null) counted.threadDetached();
+            if (process != null) process.threadAttached();
+
+            counted = process;
         }
-        traceUpdated = newUpdate;
-        noTrace      = newNoTrace;
     }
     /*
-     * This is the only place where the threads object is accessed.
+     * Removes the thread from the attached count of its process. The process is left set, as modules created
+     * by the thread may still refer to it.
+     */
+    private void detachProcess() {
+        if (counted != null) {
+            counted.threadDetached();
+            counted = null;
+        }
+    }
+    /*
+     * Returns the Thread for the current java thread, creating it if there is none or completing it if it
+     * was inherited. The Thread is held in a ThreadLocal, so no lock is taken. Threads is only a registry of
+     * the Threads for the statistics and is not used to find the current Thread.
      */
     private static Thread loadThread() {
-        java.lang.Thread thread = java.lang.Thread.currentThread();
-        Thread           thrd   = lastThread;
-        
-        if (thrd == null || thrd.thread != thread) {
-            /*
-             * The thread is not the last one accessed. So get it from threads and create a
-             * new Thread if not found.
-             */
-            synchronized (lock) {
-                thrd = threads.get(thread);
-                
-                if (thrd == null) {
-                    thrd = new Thread(thread, threads.size() + 1);
-                    threads.put(thread, thrd);
-                }
-                lastThread = thrd;
+        Thread thrd = current.get();
+
+        if (thrd == null || thrd.key == null) {
+            java.lang.Thread thread = java.lang.Thread.currentThread();
+
+            if (thrd == null) {
+                thrd = new Thread(thread, lastIndex.incrementAndGet());
+                current.set(thrd);
+            } else {
+                thrd.key          = new Key(thread);
+                thrd.index        = lastIndex.incrementAndGet();
+                thrd.initialStats = new ProcessStats();
+                thrd.parameters.setValue("PID",         thread.hashCode());
+                thrd.parameters.setValue("THREADINDEX", thrd.index);
+                thrd.setProcess(thrd.process);
             }
+            register(thrd, registered ? threads : unregistered);
         }
         return thrd;
     }
+    /*
+     * Adds thread to the registry, or to unregistered if threads are not registered. Unregistered is not
+     * used by the thread statistics, it only holds the contexts so that they can be removed from the attached
+     * count of their process once their java thread has been collected.
+     *
+     * The entries for java threads that have been collected are removed first, and the first registration
+     * starts a scheduled task that removes them, so the maps only hold the live threads even if no more
+     * threads are registered.
+     */
+    private static void register(Thread thread, ConcurrentHashMap<Key, Thread> registry) {
+        expunge();
+        registry.put(thread.key, thread);
+
+        if (expungeStarted.compareAndSet(false, true)) {
+            Scheduler.scheduleRepeated(new Runnable() {
+                @Override
+                public void run() {
+                    expunge();
+                }
+            }, 1000L * expungeRate, 1000L * expungeRate);
+        }
+    }
+    /*
+     * Removes the registry and unregistered entries for the java threads that have been collected and
+     * removes them from the attached count of their process. Only the released keys are visited, so there
+     * is no scan of the registry.
+     */
+    private static void expunge() {
+        Object key;
+
+        while ((key = released.poll()) != null) {
+            Thread thread = threads.remove(key);
+
+            if (thread == null) thread = unregistered.remove(key);
+
+            if (thread != null) thread.detachProcess();
+        }
+    }
     public static Thread getThread() {
         Thread thr = loadThread();
 
@@ -105,21 +219,19 @@ public class Thread implements Serializable {
         if (process == null) {
             process = Process.getProcess("ANON");
         }       
-        Thread.process         = process;
+        Thread.setProcess(process);
         Thread.initialStats    = new ProcessStats();
         Thread.parameters      = new Parameters(true);
         Thread.disabledByGroup = false;
         Thread.parameters.setValue("ID",          process.getIdentifier());
-        Thread.parameters.setValue("PID",         Thread.thread.hashCode());
+        Thread.parameters.setValue("PID",         java.lang.Thread.currentThread().hashCode());
         Thread.parameters.setValue("THREADINDEX", Thread.index);
         Thread.parameters.setValue("HOSTNAME",    Thread.initialStats.hostName);
-        
-        updateNoTrace(true);
     }
     public static void attach(String identifier) {
         Process proc = Process.getProcess(identifier);
 
-        Thread thr = getThread();
+        Thread thr = loadThread();
 
         //Return if the current thread is still executing the same process.
 
@@ -133,38 +245,36 @@ public class Thread implements Serializable {
         /*
          * Force exit on all modules in the modules stack;
          */
-        if (thr.modules.size() > 0) thr.modules.get(0).exit(true);
+        if (thr.depth > 0) thr.modules[0].exit(true);
         /*
          * Remove the current thread from threads. Detach should be called as the last thing before
          * closing the thread. If activity continues on the thread then another thread will be created.
          */
-        synchronized(lock) {
-            threads.remove(thr.thread);
-            lastThread = null;
-        }
-        updateNoTrace(true);
+        current.remove();
+        threads.remove(thr.key);
+        unregistered.remove(thr.key);
+        thr.detachProcess();
     }
+    /*
+     * The entries for collected threads are removed automatically. This also removes the entries for
+     * threads that have ended but are still referenced, so have not been collected.
+     */
     public static void removeUnusedThreads() {
-        boolean removed = false;
-        
-        synchronized(lock) {
-            for (java.lang.Thread t : threads.keySet()) {
-                if (!t.isAlive()) {
-                    removed = true;
-                    threads.remove(t);
-                }
-            }
+        expunge();
+
+        for (Thread t : threads.values()) {
+            if (!t.isAlive() && threads.remove(t.key) != null) t.detachProcess();
+        }
+        for (Thread t : unregistered.values()) {
+            if (!t.isAlive() && unregistered.remove(t.key) != null) t.detachProcess();
         }
-        if (removed) updateNoTrace(true);
     }
     public String getIdentifier() {
         return process.getIdentifier();
     }
 
     public static boolean isTraceEnabled(char traceType) {
-        updateNoTrace(false);
-        
-        if (noTrace) return false;
+        if (noTrace()) return false;
         
         Process process = getThread().process;
         
@@ -197,23 +307,19 @@ public class Thread implements Serializable {
     public static void report(String stream, String ref, boolean abort, String duplicateKey, String text) {
         report(stream, ref, abort, duplicateKey, text, null, false);
     }
-
-    private static void setReserved() {
-        if (reserved.isEmpty()) {
-            reserved.add("ID");
-            reserved.add("PID");
-            reserved.add("MOD");
-            reserved.add("REF");
-            reserved.add("ERRORREF");
-            reserved.add("ERRORFILE");
-            reserved.add("ERRORLINE");
-            reserved.add("THREADINDEX");
+    /*
+     * As above except text is only evaluated if the stream is active.
+     */
+    public static void report(String stream, String ref, boolean abort, String duplicateKey, Supplier<String> text) {
+        if (isStreamActive(stream)) {
+            report(stream, ref, abort, duplicateKey, text.get(), null, false);
         }
     }
+    public static boolean isStreamActive(String stream) {
+        return getThread().process.getStream(stream).isActive();
+    }
 
     private static void checkReservedParameter(String method, String name) {
-        setReserved();
-
         if (name.length() != 0 && name.charAt(0) == '$' || reserved.contains(name.toUpperCase())) {
             throw new BaseException(method, "APPTHRD001", false, "", "Parameter " + name + " is reserved");
         }
@@ -240,10 +346,9 @@ public class Thread implements Serializable {
     }
 
     public static void clearParameters() {
-        setReserved();
         Parameters p = getParameters();
 
-        for (String name : p.getNames()) {
+        for (String name : new ArrayList<String>(p.getNames())) {
 
             if (!reserved.contains(name)) {
                 p.clear(name);
@@ -272,13 +377,15 @@ public class Thread implements Serializable {
         private boolean noTrace;
         
         public void reload() {
-            threads = Thread.threads.size();
+            expunge();
+            threads         = Thread.threads.size();
+            inactiveThreads = 0;
             
-            for (java.lang.Thread t : Thread.threads.keySet()) {
+            for (Thread t : Thread.threads.values()) {
                 if (!t.isAlive()) inactiveThreads++;
             }
             lastTraceUpdate = Process.getLastUpdate();
-            noTrace         = Thread.noTrace;
+            noTrace         = !Process.isTracing();
         }
         public ThreadStatistics() {
             reload();
@@ -326,7 +433,7 @@ public class Thread implements Serializable {
     public class ThreadProcess implements Serializable {
         private transient java.lang.Thread thread = java.lang.Thread.currentThread();
         private transient String           name;
-        private transient int              traceLevel = modules.size();
+        private transient int              traceLevel = depth;
         private transient Process          sProcess;
         private transient Parameters       sParameters;
         private transient ProcessStats     sInitialStats;
@@ -364,7 +471,7 @@ public class Thread implements Serializable {
         public void release() {
             if (thread == java.lang.Thread.currentThread() && !released) {
                 reset();
-                process      = sProcess;
+                setProcess(sProcess);
                 parameters   = sParameters;
                 initialStats = sInitialStats;
                 released     = true;
@@ -376,10 +483,10 @@ public class Thread implements Serializable {
          */
         public void reset() {
             if (thread == java.lang.Thread.currentThread() && !released) {
-                if (traceLevel < modules.size() - 1) {
-                    modules.get(traceLevel + 1).exit(true);
+                if (traceLevel < depth - 1) {
+                    modules[traceLevel + 1].exit(true);
                 }
-                process      = oProcess;
+                setProcess(oProcess);
                 parameters   = oParameters;
                 initialStats = oInitialStats;
             }
@@ -405,10 +512,88 @@ public class Thread implements Serializable {
         return loadThread(java.lang.Thread.currentThread()).getProcess(name);
     }
     */
+    /*
+     * The reporting context of a thread, i.e. its process, parameters and initial statistics, captured so that
+     * it can be installed on another thread for the duration of a task. The parameters are a snapshot taken
+     * at capture, so later changes by either thread do not affect the other and capturing does not copy them.
+     * PID and THREADINDEX are replaced by those of the thread running the task.
+     */
+    static final class Snapshot {
+        private final Process      process;
+        private final Parameters   parameters;
+        private final ProcessStats initialStats;
+
+        private Snapshot(Thread thread) {
+            process      = thread.process;
+            parameters   = thread.parameters.snapshot();
+            initialStats = thread.initialStats;
+        }
+        /*
+         * Calls task with the captured context installed on the current thread. The thread's own context is
+         * restored when task completes, forcing exit of any trace modules it left on the module stack.
+         */
+        <V> V call(Callable<V> task) throws Exception {
+            java.lang.Thread thread      = java.lang.Thread.currentThread();
+            Thread           thr         = loadThread();
+            Process          sProcess    = thr.process;
+            Parameters       sParameters = thr.parameters;
+            ProcessStats     sStats      = thr.initialStats;
+            boolean          sDisabled   = thr.disabledByGroup;
+            int              traceLevel  = thr.depth;
+
+            thr.setProcess(process);
+            thr.parameters      = parameters.snapshot();
+            thr.initialStats    = initialStats;
+            thr.disabledByGroup = false;
+            thr.parameters.setValue("PID",         thread.hashCode());
+            thr.parameters.setValue("THREADINDEX", thr.index);
+
+            try {
+                return task.call();
+            } finally {
+                if (traceLevel < thr.depth) thr.modules[traceLevel].exit(true);
+
+                thr.setProcess(sProcess);
+                thr.parameters      = sParameters;
+                thr.initialStats    = sStats;
+                thr.disabledByGroup = sDisabled;
+            }
+        }
+        void run(Runnable task) {
+            try {
+                call(() -> {
+                    task.run();
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                /*
+                 * Cannot happen as run does not throw checked exceptions.
+                 */
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+    /*
+     * Returns the context of the current thread, or null if it has no attached process. A context is not
+     * created for the current thread if it does not have one.
+     */
+    static Snapshot capture() {
+        Thread thr = current.get();
+
+        return thr == null || thr.process == null || thr.parameters == null ? null : new Snapshot(thr);
+    }
 
     /**
      * If the maximum trace level has been reached returns the last allocated
-     * module, otherwise creates a new module and returns it.
+     * module, otherwise pushes a module on to the modules stack and returns it.
+     * 
+     * The modules stack is an array of modules indexed by depth. The modules
+     * in it are reused by later pushes to the same depth, so once the stack has
+     * reached the depth of the calls traced, entering and exiting trace modules
+     * does not create any objects. Reusing a module increments its generation,
+     * which is how Trace detects that its module has exited and been reused.
      */
     private Module newModule(String name, char traceType, String group) {
         Module mod;
@@ -417,22 +602,29 @@ public class Thread implements Serializable {
             attach("ANON");
         }
 
-        if (modules.size() > process.getMaxTraceLevel()) {
-            mod = modules.get(modules.size() - 1);
+        if (depth > process.getMaxTraceLevel()) {
+            mod = modules[depth - 1];
             mod.useCount += 1;
         } else {
-            mod = new Module(name, traceType, group);
-            modules.add(mod);
-            mod.index = modules.size() - 1;
-        }
-        mod.traceReport(traceType, (group == null) ? "Enter" : "Enter in group " + group);
+            if (depth == modules.length) modules = Arrays.copyOf(modules, 2 * depth);
+
+            mod = modules[depth];
 
+            if (mod == null) {
+                mod            = new Module(name, traceType, group);
+                modules[depth] = mod;
+            } else {
+                mod.enter(name, traceType, group);
+            }
+            mod.index = depth++;
+        }
+        if (mod.isTraceEnabled(traceType)) {
+            mod.traceReport(traceType, (group == null) ? "Enter" : "Enter in group " + group);
+        }
         return mod;
     }
     public static Module createModule(String name, char traceType, String group) {
-        updateNoTrace(false);
-        
-        if (noTrace) return null;
+        if (noTrace()) return null;
         
         Thread mThread = Thread.getThread();
         return mThread.newModule(name, traceType, group);
@@ -461,7 +653,7 @@ public class Thread implements Serializable {
         if (ch >= ' ') {
             return "" + ch;
         }
-        return twodigits.format((int) ch);
+        return (ch < 10 ? "0" : "") + (int) ch;
     }
     /*
      * The module class is used to hold details for the Trace object created on the entry to a method and
@@ -478,31 +670,65 @@ public class Thread implements Serializable {
     public class Module implements Serializable {
         private transient String           name;
         private transient char             traceType;
-        private transient java.lang.Thread cThread;                    //Thread at time of construction
         private transient int              useCount           = 0;     //Number of times reused as a result of trace limit reached.
-        private transient boolean          removed            = true;  //Set to true if already removed from the vector.
+        private transient boolean          removed            = true;  //Set to true if already removed from the stack. 
         private transient boolean          copy               = false; //Set to true if unattached copy.
         private transient boolean          exitCalled         = false;
         private transient String           group;
         private transient boolean          disabledByGroup    = Thread.this.disabledByGroup;
         private transient boolean          moduleTraceEnabled = false;
-        private transient long             entryTime          = System.currentTimeMillis();
-        private transient long             entryFree          = ProcessStats.runtime.freeMemory();
+        private transient boolean          sampledOut         = false; //Set to true if the call tree is not traced, see TraceSampler.
+        private transient String           root;                       //The module of the call tree, see TraceSampler.
+        private transient long             entryTime;
+        private transient long             entryNanos         = -1;
+        private transient long             entryCpu           = -1;
+        private transient long             entryAllocated     = -1;
         private transient int              index              = -1;
+        private transient int              generation         = 0;     //Incremented each time the module is reused.
         private transient Thread           lThread;                    //The last value returned by setCurrent.
 
         private Module(String name, char traceType, String group) {
-            this.name      = name;
-            this.traceType = traceType;
-            cThread        = java.lang.Thread.currentThread();
-            this.group     = group;
-            lThread        = Thread.this;
-            removed        = false;
+            enter(name, traceType, group);
+        }
+        /*
+         * Sets up the module for entry to a trace module. Called on construction and when the module is reused
+         * from the modules stack.
+         */
+        private void enter(String name, char traceType, String group) {
+            this.name          = name;
+            this.traceType     = traceType;
+            this.group         = group;
+            useCount           = 0;
+            removed            = false;
+            copy               = false;
+            exitCalled         = false;
+            disabledByGroup    = Thread.this.disabledByGroup;
+            entryTime          = System.currentTimeMillis();
+            index              = -1;
+            lThread            = Thread.this;
+            generation        += 1;
+            /*
+             * Whether the call tree is sampled is decided by the module with no enclosing module and applies
+             * to the modules it encloses.
+             */
+            root               = depth == 0 ? name : modules[depth - 1].root;
+            sampledOut         = depth == 0 ? !process.isTraceAdmitted(name) : modules[depth - 1].sampledOut;
 
             if (!disabledByGroup && group != null) {
                 disabledByGroup = !process.isGroupEnabled(group.trim());
             }
-            moduleTraceEnabled = !disabledByGroup && process.isModuleEnabled(name.trim());
+            moduleTraceEnabled = !sampledOut && !disabledByGroup && process.isModuleEnabled(name.trim());
+            /*
+             * The figures for the exit report are only taken if it will be output.
+             */
+            boolean timed      = moduleTraceEnabled && isTraceEnabled(traceType);
+
+            entryNanos         = timed && process.getNanoTime()  ? System.nanoTime()      : -1;
+            entryCpu           = timed && process.getCpuTime()   ? Timing.cpuTime()        : -1;
+            entryAllocated     = timed && process.getAllocated() ? Timing.allocatedBytes() : -1;
+        }
+        int getGeneration() {
+            return generation;
         }
 
         public String getName() {
@@ -527,6 +753,14 @@ public class Thread implements Serializable {
                 report(setCurrent(), type, text);
             }
         }
+        /*
+         * As above except text is only evaluated if trace is enabled for type.
+         */
+        public void traceReport(char type, Supplier<String> text) {
+            if (isTraceEnabled(type)) {
+                report(setCurrent(), type, text.get());
+            }
+        }
 
         public void exit() {
             exit(setCurrent(), false);
@@ -546,18 +780,41 @@ public class Thread implements Serializable {
                     sType += ((sType.length() == 1) ? " !!C" : "C");
                 }
                 pThread.process.getStream("TRACE").output(sType, name, text, parameters, null);
+                pThread.process.traceRecorded(root);
             }
         }
 
         private void exit(boolean forced) {
             exit(setCurrent(), forced);
         }
+        /*
+         * Returns the text of the exit report. The elapsed time is to the millisecond unless NANOTIME is set
+         * for the process, and the CPU time and allocated bytes are added if CPUTIME and ALLOCATED are set.
+         */
+        private String exitText(boolean forced) {
+            StringBuilder text = new StringBuilder(forced ? "Exit-forced elapsed " : "Exit elapsed ");
 
-        private void exit(Thread pThread, boolean forced) {
-            double lapsed = (System.currentTimeMillis() - entryTime) / 1000.0;
+            if (entryNanos != -1) {
+                Timing.appendSeconds(text, System.nanoTime() - entryNanos, 6);
+            } else {
+                Timing.appendSeconds(text, (System.currentTimeMillis() - entryTime) * 1000000L, 3);
+            }
+            if (entryCpu != -1) {
+                long cpu = Timing.cpuTime();
+
+                if (cpu != -1) Timing.appendSeconds(text.append(" cpu "), cpu - entryCpu, 6);
+            }
+            if (entryAllocated != -1) {
+                long allocated = Timing.allocatedBytes();
 
-            if (useCount == 0 || forced) {
-                report(pThread, traceType, "Exit" + ((forced) ? "-forced " : " ") + "elapsed " + fmt.format(lapsed));
+                if (allocated != -1) text.append(" allocated ").append(allocated - entryAllocated);
+            }
+            return text.toString();
+        }
+
+        private void exit(Thread pThread, boolean forced) {
+            if ((useCount == 0 || forced) && moduleTraceEnabled && pThread.isTraceEnabled(traceType)) {
+                report(pThread, traceType, exitText(forced));
             }
 
             if (useCount > 0) {
@@ -567,11 +824,12 @@ public class Thread implements Serializable {
             }
 
             if (!removed && !copy) {
-                try {
-                    modules.remove(index);
-                } catch (Exception e) {
-                    System.out.println("!!Got '" + e.toString() + "' on output of exit of module " + name);
-                }
+                /*
+                 * The modules above this one have been force exited by setCurrent, so this is the top of
+                 * the stack.
+                 */
+                if (index < depth) depth = index;
+
                 removed = true;
             }
         }
@@ -587,7 +845,7 @@ public class Thread implements Serializable {
         private Thread setCurrent() {
             Thread thrd;
 
-            if (cThread != java.lang.Thread.currentThread()) {
+            if (Thread.this.key.get() != java.lang.Thread.currentThread()) {
                 /*
                  * This should never be the case if the trace rules have been followed. Set to removed to
                  * prevent force exit from of following entries in the module stack as it belongs to a different
@@ -599,7 +857,7 @@ public class Thread implements Serializable {
             } else {
                 thrd = Thread.this;
             }
-            if (index >= modules.size()) {
+            if (index >= depth) {
                 /*
                  * This can happen if trace module is declare as global and exit called for it later. This is a
                  * misuse of the trace facility.
@@ -611,8 +869,8 @@ public class Thread implements Serializable {
              * been violated.
              */
             if (!removed && !copy) {
-                for (int i = modules.size() - 1; index < i; i--) {
-                    modules.get(i).exit(thrd, true);
+                for (int i = depth - 1; index < i; i--) {
+                    modules[i].exit(thrd, true);
                 }
                 lThread.disabledByGroup = disabledByGroup;
             }
@@ -0,0 +1,69 @@
+package org.cbc.application.reporting;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Provides the figures for the current thread that can be added to the trace module exit reports, see the
+ * ARConfig properties NANOTIME, CPUTIME and ALLOCATED, and formats the times reported.
+ * <P>
+ * The formatting does not use a shared DecimalFormat, as DecimalFormat is not thread safe.
+ */
+class Timing {
+    private static final ThreadMXBean                     threads   = ManagementFactory.getThreadMXBean();
+    private static final boolean                          cpu       = threads.isCurrentThreadCpuTimeSupported();
+    private static final com.sun.management.ThreadMXBean  allocated = getAllocatedBean();
+
+    /*
+     * Returns the bean providing the bytes allocated by a thread, or null if the JVM does not support it.
+     */
+    private static com.sun.management.ThreadMXBean getAllocatedBean() {
+        try {
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+
+                if (bean.isThreadAllocatedMemorySupported()) return bean;
+            }
+        } catch (LinkageError e) {
+        }
+        return null;
+    }
+    /*
+     * Returns the CPU time used by the current thread in nanoseconds, or -1 if it is not available.
+     */
+    static long cpuTime() {
+        return cpu ? threads.getCurrentThreadCpuTime() : -1;
+    }
+    /*
+     * Returns the bytes allocated by the current thread, or -1 if it is not available.
+     */
+    static long allocatedBytes() {
+        return allocated == null ? -1 : allocated.getThreadAllocatedBytes(java.lang.Thread.currentThread().getId());
+    }
+    /*
+     * Appends nanos as seconds to text with the number of decimal places given by digits, which must be
+     * between 0 and 9. The value is truncated.
+     */
+    static StringBuilder appendSeconds(StringBuilder text, long nanos, int digits) {
+        long scale = 1;
+
+        for (int i = 0; i < digits; i++) scale *= 10;
+
+        long units = Math.abs(nanos) / (1000000000L / scale);
+
+        if (nanos < 0) text.append('-');
+
+        text.append(units / scale);
+
+        if (digits > 0) {
+            String fraction = Long.toString(units % scale);
+
+            text.append('.');
+
+            for (int i = fraction.length(); i < digits; i++) text.append('0');
+
+            text.append(fraction);
+        }
+        return text;
+    }
+}
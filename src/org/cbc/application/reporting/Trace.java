@@ -4,6 +4,7 @@ import org.cbc.application.TraceInterface;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.function.Supplier;
 
 /**
  * The Trace class provides methods that enables the generation of trace
@@ -28,6 +29,28 @@ import java.io.Serializable;
  * statement can belong to a number of trace groups.
  * <P>Trace can be controlled by Module, Trace Type or Group, e.g. all trace for
  * group X could be turned off.
+ * <P>Trace is controlled by the lines of the trace control file, TRACE.CTL by
+ * default, or by the same lines passed to Process.applyTraceControl. A line is
+ * <PRE>
+ *   [Identifier]:[#Level#][+|-][!Codes!]Types[ @Sampling]
+ *   [Identifier]*[+|-]Groups
+ *   [Identifier]$[+|-]Modules
+ * </PRE>
+ * Identifier selects the process, all processes if omitted. Level sets the
+ * maximum module depth traced. Types are the trace types enabled, replacing
+ * the current types, or added with + or removed with -. Codes are types given
+ * as comma separated character codes, e.g. !10,35!. If no types are given the
+ * default types are enabled. Groups and Modules are comma separated lists of
+ * the groups and modules that are not traced, replacing the current list, or
+ * added with + or removed with -.
+ * <P>Sampling limits the call trees traced, see TraceMask.withSampling, e.g.
+ * <PRE>
+ *   APP:pPvVrR @1/100 @500/s @50/s/module
+ * </PRE>
+ * traces 1 in 100 call trees, up to 500 trace records a second for the
+ * process and 50 a second for the call trees of each module.
+ * The @ starting Sampling must follow white space, as @ on its own is a trace
+ * type, e.g. APP:X@ enables types X and @.
  *
  * @version <b>v1.0, 11/Jun/01, C.B. Close:</b> Initial version.
  * @version <b>v1.1, 28/Jun/01, C.B. Close:</b> Implement TraceInterface.
@@ -79,6 +102,8 @@ public class Trace implements TraceInterface, Serializable {
      */
     public Trace(String module, char entryTraceType, String group) {
         this.module = Thread.createModule(module, entryTraceType, group);
+
+        if (this.module != null) generation = this.module.getGeneration();
     }
     /**
      * Constructs a trace instance for Module with entry and exit trace reports
@@ -117,6 +142,8 @@ public class Trace implements TraceInterface, Serializable {
      * @return True if trace is enabled.
      */
     public boolean isTraceEnabled(char traceType) {
+        Thread.Module module = getModule();
+
         return module != null && module.isTraceEnabled(traceType);
     }
     /**
@@ -126,6 +153,8 @@ public class Trace implements TraceInterface, Serializable {
      * @param Text The report text.
      */
     public void report(char type, String text) {
+        Thread.Module module = getModule();
+
         if (module != null && !module.noTrace()) {
             module.traceReport(type, text);
         }
@@ -142,6 +171,46 @@ public class Trace implements TraceInterface, Serializable {
     public void report(char type, String identifier, String text) {
         report(type, identifier + " = " + text);
     }
+    /**
+     * Generates a report to the trace stream. Text is only called if trace is
+     * enabled for Type, so the cost of building the report is avoided when it
+     * would not be output.
+     *
+     * @param Type The report trace type.
+     * @param Text Supplies the report text.
+     */
+    public void report(char type, Supplier<String> text) {
+        Thread.Module module = getModule();
+
+        if (module != null && !module.noTrace()) {
+            module.traceReport(type, text);
+        }
+    }
+    /**
+     * As above for an identifier. The text of the report is
+     * <P>Identifier = Value
+     *
+     * Value is only called if trace is enabled for Type.
+     *
+     * @param Type The report trace type.
+     * @param Identifer The identifier for the value.
+     * @param Value Supplies the value.
+     */
+    public void report(char type, String identifier, Supplier<?> value) {
+        report(type, () -> identifier + " = " + value.get());
+    }
+    /**
+     * Generates a report to the trace stream with text produced by
+     * String.format from Format and Args. The text is only formatted if trace
+     * is enabled for Type.
+     *
+     * @param Type The report trace type.
+     * @param Format The format string.
+     * @param Args The format arguments.
+     */
+    public void format(char type, String format, Object... args) {
+        report(type, () -> String.format(format, args));
+    }
     /**
      * Called on completion of the trace module and generates the exit trace
      * report. If this method is not called the first method executed by a
@@ -149,10 +218,19 @@ public class Trace implements TraceInterface, Serializable {
      * trace class instantiations.
      */
     public void exit() {
+        Thread.Module module = getModule();
+
         if (module != null) {
             module.exit();
         }
     }
+    /*
+     * Returns the module or null if there is none or it has been exited and reused for a later trace
+     * object, see Thread.newModule.
+     */
+    private Thread.Module getModule() {
+        return module != null && module.getGeneration() == generation ? module : null;
+    }
     /*
      * Trace objects should never be serailized as they should only ever be declared as local method
      * variables. If a trace object were serialized the thread to which mModule is attached would no longer
@@ -162,8 +240,10 @@ public class Trace implements TraceInterface, Serializable {
         in.defaultReadObject();
         
         if (module != null) {
-            module = Thread.createModule(module);
+            module     = Thread.createModule(module);
+            generation = module.getGeneration();
         }
     }
     private Thread.Module module = null;
+    private transient int generation;
 }
@@ -0,0 +1,137 @@
+package org.cbc.application.reporting;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the trace settings of a process as a TraceControlMXBean.
+ */
+class TraceControl implements TraceControlMXBean {
+    private final Process process;
+
+    private TraceControl(Process process) {
+        this.process = process;
+    }
+    private static ObjectName getName(Process process) throws JMException {
+        return new ObjectName("org.cbc.application.reporting:type=TraceControl,name=" + ObjectName.quote(process.getIdentifier()));
+    }
+    /*
+     * Registers the process with the platform MBean server. Reporting does not depend on the MBean, so
+     * failing to register it is reported and otherwise ignored.
+     */
+    static void register(Process process) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName  name   = getName(process);
+
+            if (!server.isRegistered(name)) server.registerMBean(new TraceControl(process), name);
+        } catch (JMException | SecurityException e) {
+            System.err.println("Unable to register trace control for " + process.getIdentifier() + "-" + e.toString());
+        }
+    }
+    static void unregister(Process process) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName  name   = getName(process);
+
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException | SecurityException e) {
+        }
+    }
+    private static String toList(Set<String> names) {
+        StringBuilder list = new StringBuilder();
+
+        for (String name : new TreeSet<String>(names)) {
+            if (list.length() != 0) list.append(',');
+
+            list.append(name);
+        }
+        return list.toString();
+    }
+    @Override
+    public String getIdentifier() {
+        return process.getIdentifier();
+    }
+    @Override
+    public boolean getTraceEnabled() {
+        return process.isTraceEnabled();
+    }
+    @Override
+    public String getTraceMask() {
+        return process.getTraceMask().getFlags();
+    }
+    @Override
+    public void setTraceMask(String mask) {
+        process.setTraceMask(mask);
+    }
+    @Override
+    public String getTraceGroups() {
+        return toList(process.getTraceMask().getGroups());
+    }
+    @Override
+    public void setTraceGroups(String list) {
+        process.setTraceGroups(list);
+    }
+    @Override
+    public String getTraceModules() {
+        return toList(process.getTraceMask().getModules());
+    }
+    @Override
+    public void setTraceModules(String list) {
+        process.setTraceModules(list);
+    }
+    @Override
+    public String getTraceSampling() {
+        return process.getTraceMask().getSampling();
+    }
+    @Override
+    public void setTraceSampling(String spec) {
+        process.setTraceSampling(spec);
+    }
+    @Override
+    public int getMaxTraceLevel() {
+        return process.getMaxTraceLevel();
+    }
+    @Override
+    public void setMaxTraceLevel(int level) {
+        process.setMaxTraceLevel(level);
+    }
+    @Override
+    public int getMaxDuplicates() {
+        return process.getMaxDuplicates();
+    }
+    @Override
+    public void setMaxDuplicates(int maxDuplicates) {
+        process.setMaxDuplicates(maxDuplicates);
+    }
+    @Override
+    public int getDuplicateCount() {
+        return process.getDuplicateCount();
+    }
+    @Override
+    public Date getUpdated() {
+        return process.getUpdated();
+    }
+    @Override
+    public Map<String, Process.Stream.Summary> getStreamSummaries() {
+        return process.getStreamSummaries();
+    }
+    @Override
+    public void applyTraceControl(String line) {
+        Process.applyTraceControl(line);
+    }
+    @Override
+    public void reloadTraceControl() {
+        Process.reloadTraceControl();
+    }
+    @Override
+    public void clearDuplicates() {
+        process.clearDuplicates(null);
+    }
+}
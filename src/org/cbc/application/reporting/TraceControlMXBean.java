@@ -0,0 +1,59 @@
+package org.cbc.application.reporting;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * The management interface of a process, registered with the platform MBean server as
+ * org.cbc.application.reporting:type=TraceControl,name=identifier when the process is created.
+ * <P>
+ * Changes to the trace settings take effect immediately, see Process.applyTraceControl.
+ */
+public interface TraceControlMXBean {
+    public String getIdentifier();
+    /**
+     * True if any trace flags are set for the process.
+     */
+    public boolean getTraceEnabled();
+    /**
+     * The trace flags in the format of the trace control file, e.g. ABC. Setting the mask can also set the
+     * level and sampling, e.g. #20 +ABC @1/100.
+     */
+    public String getTraceMask();
+    public void setTraceMask(String mask);
+    /**
+     * The disabled groups as a comma separated list. The list is updated as for the trace control file, i.e.
+     * it is replaced unless the value starts with + or -.
+     */
+    public String getTraceGroups();
+    public void setTraceGroups(String list);
+    /**
+     * The disabled modules as a comma separated list, updated as for TraceGroups.
+     */
+    public String getTraceModules();
+    public void setTraceModules(String list);
+    /**
+     * The sampling, e.g. 1/1000 @500/s, see TraceMask.withSampling. An empty value removes the sampling.
+     */
+    public String getTraceSampling();
+    public void setTraceSampling(String spec);
+    public int getMaxTraceLevel();
+    public void setMaxTraceLevel(int level);
+    public int getMaxDuplicates();
+    public void setMaxDuplicates(int maxDuplicates);
+    public int getDuplicateCount();
+    /**
+     * The time the trace settings were last changed.
+     */
+    public Date getUpdated();
+    public Map<String, Process.Stream.Summary> getStreamSummaries();
+    /**
+     * Applies a line in the format of the trace control file to the processes.
+     */
+    public void applyTraceControl(String line);
+    /**
+     * Reads the trace control file and applies it to the processes.
+     */
+    public void reloadTraceControl();
+    public void clearDuplicates();
+}
@@ -2,6 +2,7 @@ package org.cbc.application.reporting;
 
 import org.cbc.application.Token;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -11,7 +12,7 @@ import java.util.Set;
  * @version <b>v1.1, 11/Jul/01, C.B. Close:</b> Implement Serializable.
  * @version <b>v1.1, 18/Nov/01, C.B. Close:</b> Added Module and Group lists.
  */
-public class TraceMask implements Serializable {
+public final class TraceMask implements Serializable {
     /*
      * If the first character is # the following characters up to the first
      * none digit are the level. The level is returned as an integer and if
@@ -41,13 +42,64 @@ public class TraceMask implements Serializable {
         }
         return level;
     }
+    /*
+     * Returns the index of the @ starting the sampling clause of mask, or -1 if there is none. The clause
+     * must be preceded by white space, as @ on its own is a valid trace flag.
+     */
+    static int getSamplingIndex(String mask) {
+        for (int i = 1; i < mask.length(); i++) {
+            if (mask.charAt(i) == '@' && Character.isWhitespace(mask.charAt(i - 1))) return i;
+        }
+        return -1;
+    }
 
+    /**
+     * Creates a mask with no trace flags set and empty group and module lists.
+     */
     public TraceMask() {
-        for (int i = 0; i < 256; i++) {
-            flags[i] = false;
+        this(new long[4], Collections.<String>emptySet(), Collections.<String>emptySet(), null);
+    }
+    private TraceMask(long[] flags, Set<String> groups, Set<String> modules, TraceSampler sampler) {
+        this(flags, groups, new NameMatcher(groups, false, true), modules, new NameMatcher(modules, true, false), sampler);
+    }
+    /*
+     * Creates a mask with the group and module lists of lists. Its matchers, and so the names they have
+     * cached, are shared, as they are not changed after they are created.
+     */
+    private TraceMask(long[] flags, TraceMask lists, TraceSampler sampler) {
+        this(flags, lists.groups, lists.groupMatcher, lists.modules, lists.moduleMatcher, sampler);
+    }
+    private TraceMask(long[] flags, Set<String> groups, NameMatcher groupMatcher, Set<String> modules, NameMatcher moduleMatcher, TraceSampler sampler) {
+        boolean any = false;
+
+        for (long word : flags) {
+            any |= word != 0;
+        }
+        this.flags         = flags;
+        this.any           = any;
+        this.groups        = groups;
+        this.modules       = modules;
+        this.groupMatcher  = groupMatcher;
+        this.moduleMatcher = moduleMatcher;
+        this.sampler       = sampler;
+    }
+    /*
+     * Sets or clears flag in flags. Flags outside the range 0 to 255 are ignored.
+     */
+    private static void setFlag(long[] flags, int flag, boolean on) {
+        if (flag < 0 || flag > 255) return;
+
+        if (on) {
+            flags[flag >>> 6] |= 1L << flag;
+        } else {
+            flags[flag >>> 6] &= ~(1L << flag);
         }
     }
-    public void setMask(Token mask) {
+    /**
+     * Returns a mask with the trace flags updated by mask and the same group and module lists.
+     */
+    public TraceMask withMask(Token mask) {
+        long[]  flags    = this.flags.clone();
         String  lFlags   = "";
         boolean relative = true;
         boolean on       = true;
@@ -61,19 +113,16 @@ public class TraceMask implements Serializable {
             default:
                 relative = false;
                 mask.stepBack();
-
-                for (int i = 0; i < this.flags.length; i++) {
-                    this.flags[i] = false;
-                }
+                Arrays.fill(flags, 0);
         }
 
         //If mask is only + or - set all flags to the appropriate value.
 
         if (!mask.moreCharacters() && relative) {
             for (int i = 0; i < 255; i++) {
-                this.flags[i] = on;
+                setFlag(flags, i, on);
             }
-            return;
+            return new TraceMask(flags, this, sampler);
         }
 
         if (mask.nextCharacter() == '!') {
@@ -124,57 +173,178 @@ public class TraceMask implements Serializable {
         lFlags += mask.remainder();
 
         for (int i = 0; i < lFlags.length(); i++) {
-            this.flags[lFlags.charAt(i)] = on;
+            setFlag(flags, lFlags.charAt(i), on);
         }
+        return new TraceMask(flags, this, sampler);
     }
 
     public boolean isEnabled(char flag) {
-        return flags[flag];
+        return flag <= 255 && (flags[flag >>> 6] & (1L << flag)) != 0;
     }
     /**
      * 
      * @return True if any of the trace flags are set.
      */
     public boolean isEnabled() {
-        for (int i = 0; i < flags.length; i++) {
-            if (flags[i]) return true;
+        return any;
+    }
+    /**
+     * Returns a mask with the module list updated by list, see updateSet, and the same flags and groups. The
+     * module matcher is only rebuilt if the list has changed.
+     */
+    public TraceMask withModules(Token list) {
+        Set<String> set = updateSet(modules, list);
+
+        if (set.equals(modules)) return new TraceMask(flags, this, sampler);
+
+        return new TraceMask(flags, groups, groupMatcher, set, new NameMatcher(set, true, false), sampler);
+    }
+    /**
+     * Returns a mask with the group list updated by list, see updateSet, and the same flags and modules. The
+     * group matcher is only rebuilt if the list has changed.
+     */
+    public TraceMask withGroups(Token list) {
+        Set<String> set = updateSet(groups, list);
+
+        if (set.equals(groups)) return new TraceMask(flags, this, sampler);
+
+        return new TraceMask(flags, set, new NameMatcher(set, false, true), modules, moduleMatcher, sampler);
+    }
+
+    /*
+     * Returns the value of number, or -1 if it is not a number greater than 0.
+     */
+    private static int getRate(String number) {
+        try {
+            int value = Integer.parseInt(number.trim());
+
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
         }
-        return false;
     }
+    /**
+     * Returns a mask with the same flags, groups and modules and the sampling set by spec. In a trace
+     * control mask spec follows the flags after white space and @, e.g. ABC @1/1000, see Trace. Spec
+     * contains one or more of the following separated by @
+     * <PRE>
+     *   count/every  Trace count in every call trees, e.g. 1/1000.
+     *   perSecond/s         Stop tracing new call trees once perSecond trace records have been written
+     *                       by the process in the current second.
+     *   perModule/s/module  Stop tracing new call trees of a module once perModule trace records have been
+     *                       written by its call trees in the current second.
+     * </PRE>
+     * A call tree is the module entered by a thread with no enclosing module and all the modules it enters,
+     * and its module is the module entered, see TraceSampler. If spec is empty sampling is removed. Invalid
+     * entries are ignored.
+     * <P>
+     * The sampling counts are reset each time the sampling is set.
+     */
+    public TraceMask withSampling(String spec) {
+        int count     = sampler == null ? 0 : sampler.getCount();
+        int every     = sampler == null ? 0 : sampler.getEvery();
+        int perSecond = sampler == null ? 0 : sampler.getPerSecond();
+        int perModule = sampler == null ? 0 : sampler.getPerModule();
+
+        if (spec.trim().length() == 0) return new TraceMask(flags, this, null);
+
+        for (String entry : spec.split("@")) {
+            int    slash = entry.indexOf('/');
+            int    value = slash == -1 ? -1 : getRate(entry.substring(0, slash));
+            String unit  = slash == -1 ? "" : entry.substring(slash + 1).replaceAll("\\s", "");
+
+            if (value == -1) {
+                //Error("Invalid sampling - " + entry);
+            } else if (unit.equalsIgnoreCase("s")) {
+                perSecond = value;
+            } else if (unit.equalsIgnoreCase("s/module")) {
+                perModule = value;
+            } else if (getRate(unit) != -1) {
+                every = getRate(unit);
+                count = value < every ? value : every;
+            }
+        }
+        if (every == count) every = count = 0;
 
-    public void updateModules(Token list) {
-        updateSet(modules, list);
+        return new TraceMask(flags, this, every == 0 && perSecond == 0 && perModule == 0 ? null : new TraceSampler(count, every, perSecond, perModule));
     }
+    /*
+     * Returns true if the call tree of module, which is being entered, is to be traced, see withSampling.
+     */
+    boolean admit(String module) {
+        return sampler == null || sampler.admit(module);
+    }
+    /*
+     * Called for each trace record written while the mask is in force. Module is the module of the call tree
+     * writing the record.
+     */
+    void recorded(String module) {
+        if (sampler != null) sampler.recorded(module);
+    }
+
+    /**
+     * Returns the trace flags in the format accepted by withMask. Flags that are not printable or would
+     * be read as part of the control syntax are given as codes between !, e.g. !10,35!ABC.
+     */
+    public String getFlags() {
+        StringBuilder codes = new StringBuilder();
+        StringBuilder chars = new StringBuilder();
 
-    public void updateGroups(Token list) {
-        updateSet(groups, list);
+        for (int i = 0; i <= 255; i++) {
+            if (!isEnabled((char) i)) continue;
+
+            if (i <= ' ' || i > '~' || "!#+-".indexOf(i) != -1) {
+                codes.append(codes.length() == 0 ? "!" : ",").append(i);
+            } else {
+                chars.append((char) i);
+            }
+        }
+        return (codes.length() == 0 ? "" : codes + "!") + chars;
+    }
+    public Set<String> getGroups() {
+        return groups;
+    }
+    public Set<String> getModules() {
+        return modules;
+    }
+    /**
+     * Returns the sampling in the format accepted by withSampling, or an empty string if there is none.
+     */
+    public String getSampling() {
+        if (sampler == null) return "";
+
+        String every = sampler.getEvery() == 0 ? "" : sampler.getCount() + "/" + sampler.getEvery();
+        String rate  = sampler.getPerSecond() == 0 ? "" : sampler.getPerSecond() + "/s";
+        String cap   = sampler.getPerModule() == 0 ? "" : sampler.getPerModule() + "/s/module";
+        String spec  = every;
+
+        if (rate.length() != 0) spec += (spec.length() == 0 ? "" : " @") + rate;
+        if (cap.length()  != 0) spec += (spec.length() == 0 ? "" : " @") + cap;
+
+        return spec;
     }
 
     public boolean isGroupEnabled(String name) {
-        return !groups.contains(name.toUpperCase());
+        return !groupMatcher.matches(name);
     }
     /*
-     * Needs to be changed to do a wild card match on Name
+     * Returns false if name matches any of the module patterns, see Token.isMatch.
      */
     public boolean isModuleEnabled(String name) {
-        synchronized (modules) {
-            for (String module : modules) {
-                if (Token.isMatch(module, name)) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return !moduleMatcher.matches(name);
     }
 
     /*
      * List contains comma separated identifier preceded by an optional + or - character. The
      * identifiers are added removed from Set if the first character is -, added to Set if it
      * is + and if neither + or - is present Set is replaced by the identifiers.
+     *
+     * The updated set is returned as a new set, leaving current unchanged.
      */
-    private void updateSet(Set<String> set, Token list) {
-        boolean add  = true;
-        String  name = "";
+    private static Set<String> updateSet(Set<String> current, Token list) {
+        HashSet<String> set  = new HashSet<String>(current);
+        boolean         add  = true;
+        String          name = "";
 
         if (!list.moreCharacters()) {
             set.clear();
@@ -206,8 +376,17 @@ public class TraceMask implements Serializable {
                 }
             }
         }
+        return Collections.unmodifiableSet(set);
     }
-    private boolean     flags[] = new boolean[256];
-    private Set<String> groups  = Collections.synchronizedSet(new HashSet<String>());
-    private Set<String> modules = Collections.synchronizedSet(new HashSet<String>());
+    /*
+     * The mask is not changed after construction, so it can be read by any thread without locking. The flags
+     * are a bitset of the 256 trace types.
+     */
+    private final long[]       flags;
+    private final boolean      any;
+    private final Set<String>  groups;
+    private final Set<String>  modules;
+    private final NameMatcher  groupMatcher;
+    private final NameMatcher  moduleMatcher;
+    private final TraceSampler sampler;
 }
@@ -0,0 +1,118 @@
+package org.cbc.application.reporting;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the trace of a process, as set by @ in the trace control file, see TraceMask.withSampling. The
+ * decision is taken when a thread enters a module with no enclosing module, and applies to all the modules
+ * entered below it, so the trace of a call tree is either complete or not output.
+ * <P>
+ * If count and every are set, count in every call trees are traced. If perSecond is set, call trees are not
+ * traced once perSecond trace records have been written by the process in the current second. If perModule
+ * is set the same limit is applied to the records written by the call trees of each module, i.e. the module
+ * entered with no enclosing module, so a module writing a lot of trace does not stop the trace of the
+ * others. The trees being traced are completed, so the records written in a second can exceed the limits.
+ * <P>
+ * The per module limits are held for up to maxModules modules. The trace of further modules is only
+ * limited by perSecond.
+ */
+class TraceSampler implements Serializable {
+    private static final int                              maxModules = 1024;
+    private final        int                              count;
+    private final        int                              every;
+    private final        int                              perSecond;
+    private final        int                              perModule;
+    private final        AtomicLong                       entries    = new AtomicLong(0);
+    private final        Rate                             rate       = new Rate();
+    private final        ConcurrentHashMap<String, Rate>  modules    = new ConcurrentHashMap<String, Rate>();
+
+    /*
+     * The trace records written in the current second.
+     */
+    private static class Rate implements Serializable {
+        private final AtomicLong    second  = new AtomicLong(0);
+        private final AtomicInteger records = new AtomicInteger(0);
+
+        /*
+         * Starts a new second if the current second has ended.
+         */
+        private void roll() {
+            long now  = System.currentTimeMillis() / 1000;
+            long last = second.get();
+
+            if (now != last && second.compareAndSet(last, now)) records.set(0);
+        }
+        boolean isBelow(int limit) {
+            roll();
+            return records.get() < limit;
+        }
+        void recorded() {
+            roll();
+            records.incrementAndGet();
+        }
+    }
+    TraceSampler(int count, int every, int perSecond, int perModule) {
+        this.count     = count;
+        this.every     = every;
+        this.perSecond = perSecond;
+        this.perModule = perModule;
+    }
+    /*
+     * Returns the rate for module, or null if there is none and no more modules can be held.
+     */
+    private Rate getRate(String module) {
+        Rate moduleRate = modules.get(module);
+
+        if (moduleRate == null && modules.size() < maxModules) {
+            Rate created = new Rate();
+
+            moduleRate = modules.putIfAbsent(module, created);
+
+            if (moduleRate == null) moduleRate = created;
+        }
+        return moduleRate;
+    }
+    /*
+     * Returns true if the call tree of module, which is being entered, is to be traced.
+     */
+    boolean admit(String module) {
+        if (every > 0 && entries.getAndIncrement() % every >= count) return false;
+
+        if (perSecond > 0 && !rate.isBelow(perSecond)) return false;
+
+        if (perModule > 0 && module != null) {
+            Rate moduleRate = getRate(module);
+
+            return moduleRate == null || moduleRate.isBelow(perModule);
+        }
+        return true;
+    }
+    /*
+     * Called for each trace record written by the process. Module is the module of the call tree, or null
+     * if the record is not written from a call tree.
+     */
+    void recorded(String module) {
+        if (perSecond > 0) rate.recorded();
+
+        if (perModule > 0 && module != null) {
+            Rate moduleRate = getRate(module);
+
+            if (moduleRate != null) moduleRate.recorded();
+        }
+    }
+    int getCount() {
+        return count;
+    }
+    int getEvery() {
+        return every;
+    }
+    int getPerSecond() {
+        return perSecond;
+    }
+    int getPerModule() {
+        return perModule;
+    }
+}
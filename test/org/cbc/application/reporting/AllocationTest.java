@@ -0,0 +1,121 @@
+package org.cbc.application.reporting;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that, once warmed up, outputting a report allocates close to nothing in the reporting thread.
+ * The reports are written to a synchronous stream, an asynchronous stream and a mapped stream. Run as
+ * <PRE>
+ *   java org.cbc.application.reporting.AllocationTest [reports]
+ * </PRE>
+ * Each stream is first written 2 * reports times, so that the JIT has compiled the output path. Then the
+ * bytes allocated per report, the lowest of several rounds, are printed for each stream and the exit status
+ * is 1 if any exceed maxBytes. The allocations are counted by com.sun.management.ThreadMXBean, so the check is skipped if
+ * the JVM does not support it.
+ */
+public class AllocationTest {
+    private static final int    maxBytes = 16;
+    private static final int    rounds   = 5;
+    private static final String config   =
+              "*ARGlobal\n"
+            + "*ARStream\n"
+            + "Name=COMMENT\n"
+            + "File=Comment.log\n"
+            + "Prefix=%H:%M:%S C !ID! !Mod+c !!REF+c !\n"
+            + "*ARStream\n"
+            + "Name=EVENT\n"
+            + "File=Event.log\n"
+            + "Prefix=%H:%M:%S E !ID! !REF+c !\n"
+            + "Async=yes\n"
+            + "QueueSize=4096\n"
+            + "Overflow=block\n"
+            + "*ARStream\n"
+            + "Name=AUDIT\n"
+            + "File=Audit.log\n"
+            + "Prefix=%H:%M:%S A !ID! !REF+c !\n"
+            + "Mapped=yes\n";
+
+    private static long allocated() {
+        return Timing.allocatedBytes();
+    }
+    /*
+     * Returns the lowest bytes allocated per report over rounds of reports output to stream. The streams must
+     * have been warmed up, so that the JIT has compiled the output path. The lowest is taken so that a round
+     * in which the JIT recompiles the output path does not fail the check.
+     */
+    private static double measure(String stream, int reports) {
+        double lowest = Double.MAX_VALUE;
+
+        for (int round = 0; round < rounds; round++) {
+            long start = allocated();
+
+            output(stream, reports, "Measured report");
+
+            lowest = Math.min(lowest, (double) (allocated() - start) / reports);
+        }
+        return lowest;
+    }
+    /*
+     * Outputs reports to stream as Report does, e.g. Report.comment for the COMMENT stream.
+     */
+    private static void output(String stream, int reports, String text) {
+        for (int i = 0; i < reports; i++) Thread.report(stream, "REF", false, null, text);
+    }
+    private static File createRoot() throws IOException {
+        File root = File.createTempFile("reporting", "");
+
+        if (!root.delete() || !root.mkdir()) throw new IOException("Unable to create " + root);
+
+        try (FileWriter out = new FileWriter(new File(root, "ARConfig.cfg"))) {
+            out.write(config);
+        }
+        return root;
+    }
+    private static void delete(File root) {
+        File[] files = root.listFiles();
+
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        root.delete();
+    }
+    public static void main(String[] args) throws Exception {
+        int     reports = args.length == 0 ? 200000 : Integer.parseInt(args[0]);
+        boolean failed  = false;
+        File    root    = createRoot();
+
+        if (allocated() == -1) {
+            System.out.println("Thread allocation counting not supported. Check skipped");
+            return;
+        }
+        try {
+            Process.setConfigFile(root.getAbsolutePath(), new File(root, "ARConfig.cfg").getAbsolutePath());
+            Process.setTraceControl(new File(root, "TRACE.CTL").getAbsolutePath());
+            Thread.attach("ALLOC");
+
+            String[] names   = {"Synchronous", "Asynchronous", "Mapped"};
+            String[] streams = {"COMMENT", "EVENT", "AUDIT"};
+
+            for (String stream : streams) {
+                output(stream, 2 * reports, "Warm up report");
+            }
+            for (int i = 0; i < streams.length; i++) {
+                double bytes = measure(streams[i], reports);
+
+                System.out.printf("%-12s %8.2f bytes per report%n", names[i], bytes);
+
+                if (bytes > maxBytes) failed = true;
+            }
+        } finally {
+            Process.close();
+            delete(root);
+        }
+        if (failed) {
+            System.out.println("Allocation exceeds " + maxBytes + " bytes per report");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.cbc.application.reporting;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Checks that the trace settings made by the Process API, e.g. via the TraceControl MBean, are applied
+ * directly, are kept when another process is created or the trace control file is polled, and are replaced
+ * when the trace control file is next modified. Run as
+ * <PRE>
+ *   java org.cbc.application.reporting.TraceControlTest
+ * </PRE>
+ * Each check is printed and the exit status is 1 if any fail.
+ */
+public class TraceControlTest {
+    private static final int     waitTime = 5000;
+    private static       boolean failed   = false;
+
+    private static void check(String name, Object actual, Object expected) {
+        boolean ok = expected.equals(actual);
+
+        System.out.println((ok ? "Passed " : "Failed ") + name + (ok ? "" : " expected " + expected + " actual " + actual));
+
+        if (!ok) failed = true;
+    }
+    private static void writeControl(File file, String control, long time) throws IOException {
+        try (FileWriter out = new FileWriter(file)) {
+            out.write(control);
+        }
+        file.setLastModified(time);
+    }
+    private static File createRoot() throws IOException {
+        File root = File.createTempFile("reporting", "");
+
+        if (!root.delete() || !root.mkdir()) throw new IOException("Unable to create " + root);
+
+        try (FileWriter out = new FileWriter(new File(root, "ARConfig.cfg"))) {
+            out.write("*ARGlobal\n");
+        }
+        writeControl(new File(root, "TRACE.CTL"), "P1:#10#AB\nP1*G0\nP2:CD\n", System.currentTimeMillis() - 10000);
+        return root;
+    }
+    /*
+     * Returns the trace flags of process once they are flags or waitTime has passed, as the watcher reads
+     * the trace control file after it has settled.
+     */
+    private static String waitForFlags(Process process, String flags) throws InterruptedException {
+        long end = System.currentTimeMillis() + waitTime;
+
+        while (!process.getTraceMask().getFlags().equals(flags) && System.currentTimeMillis() < end) {
+            java.lang.Thread.sleep(50);
+        }
+        return process.getTraceMask().getFlags();
+    }
+    private static boolean isWatcherAlive() {
+        for (java.lang.Thread thread : java.lang.Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Reporting trace control watcher") && thread.isAlive()) return true;
+        }
+        return false;
+    }
+    private static void delete(File root) {
+        File[] files = root.listFiles();
+
+        if (files != null) {
+            for (File file : files) delete(file);
+        }
+        root.delete();
+    }
+    public static void main(String[] args) throws Exception {
+        File root = createRoot();
+
+        try {
+            Process.setConfigFile(root.getAbsolutePath(), new File(root, "ARConfig.cfg").getAbsolutePath());
+            Process.setTraceControl(new File(root, "TRACE.CTL").getAbsolutePath());
+
+            Process p1 = Process.getProcess("P1");
+
+            check("file flags", p1.getTraceMask().getFlags(), "AB");
+            check("file level", p1.getMaxTraceLevel(), 10);
+            check("file groups", p1.getTraceMask().getGroups().toString(), "[G0]");
+
+            p1.setTraceMask("#20#+XY @1/10");
+            p1.setTraceGroups("+G1");
+            p1.setTraceModules("M:1");
+
+            check("API flags", p1.getTraceMask().getFlags(), "ABXY");
+            check("API level", p1.getMaxTraceLevel(), 20);
+            check("API sampling", p1.getTraceMask().getSampling(), "1/10");
+            check("API groups", p1.getTraceMask().getGroups().size(), 2);
+            check("API modules", p1.getTraceMask().getModules().toString(), "[M:1]");
+
+            Process p2 = Process.getProcess("P2");
+
+            check("new process flags", p2.getTraceMask().getFlags(), "CD");
+            check("API flags kept", p1.getTraceMask().getFlags(), "ABXY");
+            check("API level kept", p1.getMaxTraceLevel(), 20);
+            check("API sampling kept", p1.getTraceMask().getSampling(), "1/10");
+            check("API modules kept", p1.getTraceMask().getModules().toString(), "[M:1]");
+            /*
+             * Run the check made by the trace poll, used if the file system cannot be watched. The file has
+             * not changed, so the settings are kept.
+             */
+            Process.updateTrace(false);
+
+            check("poll API flags kept", p1.getTraceMask().getFlags(), "ABXY");
+            check("poll API level kept", p1.getMaxTraceLevel(), 20);
+
+            writeControl(new File(root, "TRACE.CTL"), "P1:#10#AB\nP1*G0\nP2:CD\nP1$\n", System.currentTimeMillis());
+            Process.updateTrace(false);
+
+            check("modified file flags", p1.getTraceMask().getFlags(), "AB");
+            check("modified file level", p1.getMaxTraceLevel(), 10);
+            check("modified file modules", p1.getTraceMask().getModules().size(), 0);
+
+            /*
+             * Let the watcher read the modified file before the trace control file is changed.
+             */
+            java.lang.Thread.sleep(500);
+
+            File other = new File(new File(root, "Other"), "TRACE.CTL");
+
+            other.getParentFile().mkdir();
+
+            writeControl(other, "P1:EF\n", System.currentTimeMillis());
+            Process.setTraceControl(other.getAbsolutePath());
+
+            check("changed file flags", p1.getTraceMask().getFlags(), "EF");
+
+            writeControl(other, "P1:GH\n", System.currentTimeMillis() + 1000);
+
+            check("changed file watched", waitForFlags(p1, "GH"), "GH");
+
+            Process.close();
+            java.lang.Thread.sleep(500);
+
+            check("watcher stopped", isWatcherAlive(), false);
+        } finally {
+            Process.close();
+            delete(root);
+        }
+        if (failed) System.exit(1);
+    }
+}